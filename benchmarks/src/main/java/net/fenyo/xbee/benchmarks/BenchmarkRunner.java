@@ -0,0 +1,18 @@
+package net.fenyo.xbee.benchmarks;
+
+import org.openjdk.jmh.profile.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+// runs the benchmarks with the gc profiler, to report the allocation rate
+// along with the throughput
+// usage: java -jar target/benchmarks.jar [regexp] [other JMH options]
+public class BenchmarkRunner {
+    public static void main(final String[] args) throws Exception {
+        final CommandLineOptions command_line = new CommandLineOptions(args);
+        final Options options = new OptionsBuilder().parent(command_line).addProfiler(GCProfiler.class)
+                // logging is not part of the measured paths
+                .jvmArgsAppend("-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog").build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,95 @@
+package net.fenyo.xbee.benchmarks;
+
+import java.util.concurrent.*;
+import net.fenyo.xbee.serial.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+// decoding of a whole stream, read by chunks as on the serial link
+// decoder: FrameDecoder alone, reader: FrameDecoder feeding SerialReader (response
+// table, subscriptions and frames list), as in SerialLink.read()
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+    // synthetic, noisy or the name of a traffic capture (xbee.capture.file)
+    @Param({ "synthetic", "noisy" })
+    public String stream;
+
+    // same as the input buffer of SerialLink
+    @Param({ "1024" })
+    public int chunk;
+
+    private byte[] bytes;
+    private FrameDecoder decoder;
+    private FrameDecoder reader_decoder;
+    private SerialReader reader;
+    private ScheduledExecutorService timer;
+
+    private static class CountingListener implements FrameDecoder.Listener {
+        Blackhole blackhole;
+
+        @Override
+        public void frameDecoded(final XBeeFrame frame) {
+            blackhole.consume(frame);
+        }
+
+        @Override
+        public void outsideFrame(final byte[] bytes, final int offset, final int length) {
+            blackhole.consume(length);
+        }
+    }
+
+    private final CountingListener listener = new CountingListener();
+
+    @Setup
+    public void setup() throws Exception {
+        if (stream.equals("synthetic"))
+            bytes = Streams.synthetic(10000, 16, false);
+        else if (stream.equals("noisy"))
+            bytes = Streams.synthetic(10000, 16, true);
+        else
+            bytes = Streams.read(stream);
+
+        decoder = new FrameDecoder(listener);
+
+        timer = Executors.newSingleThreadScheduledExecutor();
+        reader = new SerialReader(null, timer);
+        final Executor direct = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        };
+        for (int i = 0; i < 16; i++)
+            reader.subscribe(0x82, 0x0013a20040000000L + i * 0x7e11L, new FrameListener() {
+                @Override
+                public void frameReceived(final XBeeFrame frame) {
+                }
+            }, direct);
+        reader_decoder = new FrameDecoder(reader);
+    }
+
+    @TearDown
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Benchmark
+    public void decoder(final Blackhole blackhole) {
+        listener.blackhole = blackhole;
+        for (int offset = 0; offset < bytes.length; offset += chunk)
+            decoder.decode(bytes, offset, Math.min(chunk, bytes.length - offset));
+    }
+
+    @Benchmark
+    public String reader() {
+        for (int offset = 0; offset < bytes.length; offset += chunk)
+            reader_decoder.decode(bytes, offset, Math.min(chunk, bytes.length - offset));
+        // out of frame data accumulates until read by an AT command
+        return reader.getData();
+    }
+}
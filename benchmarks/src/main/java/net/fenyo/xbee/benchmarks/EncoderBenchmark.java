@@ -0,0 +1,45 @@
+package net.fenyo.xbee.benchmarks;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import net.fenyo.xbee.serial.*;
+import org.openjdk.jmh.annotations.*;
+
+// encoding of a remote AT command frame
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+    // command value length
+    @Param({ "1", "16", "100" })
+    public int length;
+
+    private XBeeFrame frame;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(0);
+        final byte[] content = new byte[8 + 2 + 1 + 2 + length];
+        random.nextBytes(content);
+        frame = new XBeeFrame(0x17, 1, content);
+    }
+
+    @Benchmark
+    public byte[] getRawContent() throws UnsupportedEncodingException {
+        return frame.getRawContent();
+    }
+
+    // path used by SerialWriter
+    @Benchmark
+    public int encode() {
+        buffer.clear();
+        frame.encode(buffer);
+        return buffer.position();
+    }
+}
@@ -0,0 +1,240 @@
+package net.fenyo.xbee.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import net.fenyo.xbee.metrics.*;
+import net.fenyo.xbee.serial.*;
+import net.fenyo.xbee.sim.*;
+import org.springframework.core.env.*;
+import org.springframework.mock.web.*;
+import org.springframework.test.web.servlet.*;
+import org.springframework.test.web.servlet.request.*;
+import org.springframework.test.web.servlet.setup.*;
+import org.springframework.web.context.support.*;
+import org.springframework.web.servlet.*;
+
+// closed loop load test of the web endpoints: the Spring MVC context runs
+// WebController and SerialPortHandler against an in process coordinator
+// simulator, each worker sends its next request as soon as the previous one
+// has completed
+// usage: java -cp target/benchmarks.jar net.fenyo.xbee.benchmarks.LoadTest
+// [-threads 8] [-warmup 5] [-duration 30]
+// [-mix sendRemoteAT:1,sendRemoteATNoAck:4,setLED:2]
+// [-latency ms] [-jitter ms] [-loss p] [-sampleInterval ms] [-seed n]
+// the simulator and the request mix are seeded, so that runs with the same
+// options can be compared
+// Spring 4 needs --add-opens java.base/java.lang=ALL-UNNAMED on Java 9 and
+// later
+public class LoadTest {
+    private static final long REMOTE_COMMAND = 0x0013a200409b7a9cL;
+    private static final long DEVICE = 0x0013a200409a960cL;
+    private static final long DEVICE_NO_ACK = 0x0013a200409b7abbL;
+
+    // one kind of request
+    private static class Operation {
+        final String name;
+        final int weight;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+
+        Operation(final String name, final int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    private final MockMvc mock_mvc;
+    private final Operation[] operations;
+    private final int total_weight;
+
+    private volatile boolean recording = false;
+    private volatile boolean stopped = false;
+
+    public LoadTest(final MockMvc mock_mvc, final Operation[] operations) {
+        this.mock_mvc = mock_mvc;
+        this.operations = operations;
+        int total_weight = 0;
+        for (final Operation operation : operations)
+            total_weight += operation.weight;
+        this.total_weight = total_weight;
+    }
+
+    private MockHttpServletRequestBuilder request(final Operation operation, final Random random) {
+        if (operation.name.equals("sendRemoteAT"))
+            return MockMvcRequestBuilders.get("/sendRemoteAT").param("param", "D45");
+        if (operation.name.equals("sendRemoteATNoAck"))
+            return MockMvcRequestBuilders.get("/sendRemoteATNoAck").param("param", "D45");
+        return MockMvcRequestBuilders.get((random.nextBoolean() ? "/setOnLED" : "/setOffLED") + random.nextInt(4));
+    }
+
+    // returns true if the controller reported a success
+    private boolean perform(final MockHttpServletRequestBuilder request) throws Exception {
+        MvcResult result = mock_mvc.perform(request).andReturn();
+        if (result.getRequest().isAsyncStarted())
+            result = mock_mvc.perform(MockMvcRequestBuilders.asyncDispatch(result)).andReturn();
+        final ModelAndView mav = result.getModelAndView();
+        return mav != null && "success".equals(mav.getModel().get("statusString"));
+    }
+
+    private void work(final Random random) {
+        while (!stopped) {
+            int pick = random.nextInt(total_weight);
+            Operation operation = operations[0];
+            for (final Operation candidate : operations)
+                if ((pick -= candidate.weight) < 0) {
+                    operation = candidate;
+                    break;
+                }
+
+            final long start = System.nanoTime();
+            boolean success;
+            try {
+                success = perform(request(operation, random));
+            } catch (final Exception ex) {
+                success = false;
+            }
+            if (!recording)
+                continue;
+            operation.latency.recordSince(start);
+            if (!success)
+                operation.errors.incrementAndGet();
+        }
+    }
+
+    public void run(final int threads, final long warmup, final long duration, final long seed)
+            throws InterruptedException {
+        final Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(seed + i);
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(random);
+                }
+            }, "LoadTest-" + i);
+            workers[i].start();
+        }
+        Thread.sleep(warmup);
+        recording = true;
+        final long start = System.nanoTime();
+        Thread.sleep(duration);
+        recording = false;
+        final long elapsed = System.nanoTime() - start;
+        stopped = true;
+        for (final Thread worker : workers)
+            worker.join();
+
+        System.out.println(String.format("%-20s %10s %10s %8s %10s %10s %10s %10s", "operation", "requests",
+                "req/s", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        for (final Operation operation : operations)
+            print(operation.name, operation.latency, operation.errors.get(), elapsed);
+    }
+
+    private static void print(final String name, final LatencyHistogram latency, final long errors,
+            final long elapsed) {
+        final long count = latency.getCount();
+        System.out.println(String.format("%-20s %10d %10.1f %7.2f%% %10.2f %10.2f %10.2f %10.2f", name, count,
+                count * 1e9 / elapsed, count == 0 ? 0 : 100.0 * errors / count, latency.getQuantile(0.5) / 1000.0,
+                latency.getQuantile(0.99) / 1000.0, latency.getQuantile(0.999) / 1000.0, latency.getMax() / 1000.0));
+    }
+
+    private static Operation[] parseMix(final String mix) {
+        final List<Operation> operations = new ArrayList<Operation>();
+        for (final String item : mix.split(",")) {
+            final String[] fields = item.split(":");
+            final String name = fields[0].trim();
+            if (!name.equals("sendRemoteAT") && !name.equals("sendRemoteATNoAck") && !name.equals("setLED"))
+                throw new IllegalArgumentException("unknown operation " + name);
+            final int weight = fields.length > 1 ? Integer.parseInt(fields[1].trim()) : 1;
+            if (weight > 0)
+                operations.add(new Operation(name, weight));
+        }
+        if (operations.isEmpty())
+            throw new IllegalArgumentException("empty mix");
+        return operations.toArray(new Operation[operations.size()]);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int threads = 8;
+        long warmup = 5;
+        long duration = 30;
+        String mix = "sendRemoteAT:1,sendRemoteATNoAck:4,setLED:2";
+        final XBeeSimulator simulator = new XBeeSimulator();
+        simulator.setPort(0);
+        simulator.setGuardTime(100);
+        simulator.setSampleInterval(1000);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String option = args[i];
+            final String value = args[i + 1];
+            if (option.equals("-threads"))
+                threads = Integer.parseInt(value);
+            else if (option.equals("-warmup"))
+                warmup = Long.parseLong(value);
+            else if (option.equals("-duration"))
+                duration = Long.parseLong(value);
+            else if (option.equals("-mix"))
+                mix = value;
+            else if (option.equals("-latency"))
+                simulator.setLatency(Long.parseLong(value));
+            else if (option.equals("-jitter"))
+                simulator.setJitter(Long.parseLong(value));
+            else if (option.equals("-loss"))
+                simulator.setLoss(Double.parseDouble(value));
+            else if (option.equals("-sampleInterval"))
+                simulator.setSampleInterval(Long.parseLong(value));
+            else if (option.equals("-seed"))
+                simulator.setSeed(Long.parseLong(value));
+            else {
+                System.err.println("unknown option " + option);
+                System.exit(1);
+            }
+        }
+        final Operation[] operations = parseMix(mix);
+
+        simulator.setNodes(new long[] { REMOTE_COMMAND, DEVICE, DEVICE_NO_ACK });
+        simulator.start();
+        try {
+            run(simulator, operations, threads, warmup, duration, mix);
+        } finally {
+            simulator.close();
+        }
+        System.exit(0);
+    }
+
+    private static void run(final XBeeSimulator simulator, final Operation[] operations, final int threads,
+            final long warmup, final long duration, final String mix) throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("xbee.serialServerHostName", "127.0.0.1");
+        properties.setProperty("xbee.serialServerPortNumber", String.valueOf(simulator.getLocalPort()));
+        properties.setProperty("xbee.remoteCommand.address", Tools.addressToString(REMOTE_COMMAND));
+        properties.setProperty("xbee.devices",
+                Tools.addressToString(DEVICE) + "," + Tools.addressToString(DEVICE_NO_ACK));
+        properties.setProperty("xbee.device.default", Tools.addressToString(DEVICE));
+        properties.setProperty("xbee.device.defaultNoAck", Tools.addressToString(DEVICE_NO_ACK));
+
+        final AnnotationConfigWebApplicationContext context = new AnnotationConfigWebApplicationContext();
+        context.setServletContext(new MockServletContext());
+        context.getEnvironment().getPropertySources().addFirst(new PropertiesPropertySource("loadtest", properties));
+        context.register(LoadTestConfig.class);
+        context.refresh();
+        try {
+            // the serial port handler is ready once a remote command round
+            // trip succeeds
+            final SerialPortHandler handler = context.getBean(SerialPortHandler.class);
+            final long ready_deadline = System.currentTimeMillis() + 60000;
+            while (handler.sendRemoteATCommand(DEVICE, "SP", true) == null) {
+                if (System.currentTimeMillis() > ready_deadline)
+                    throw new IllegalStateException("the serial port handler is not ready");
+                Thread.sleep(200);
+            }
+
+            System.out.println("threads: " + threads + ", mix: " + mix + ", latency: " + simulator.getLatency()
+                    + " ms, jitter: " + simulator.getJitter() + " ms, loss: " + simulator.getLoss() + ", seed: "
+                    + simulator.getSeed() + ", warmup: " + warmup + " s, duration: " + duration + " s");
+            final MockMvc mock_mvc = MockMvcBuilders.webAppContextSetup(context).build();
+            new LoadTest(mock_mvc, operations).run(threads, warmup * 1000, duration * 1000, simulator.getSeed());
+        } finally {
+            context.close();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package net.fenyo.xbee.benchmarks;
+
+import net.fenyo.xbee.serial.*;
+import org.springframework.context.annotation.*;
+import org.springframework.context.support.*;
+import org.springframework.core.env.*;
+import org.springframework.web.servlet.config.annotation.*;
+
+// web context of the load test: the production controller and serial port
+// handler, configured by the properties set by LoadTest
+@Configuration
+@EnableWebMvc
+@ComponentScan("net.fenyo.xbee.web")
+public class LoadTestConfig {
+    @Bean
+    public static PropertySourcesPlaceholderConfigurer placeholderConfigurer() {
+        return new PropertySourcesPlaceholderConfigurer();
+    }
+
+    @Bean
+    public SerialPortHandler serialPortHandler(final Environment environment) {
+        final SerialPortHandler handler = new SerialPortHandler();
+        handler.setSerialServerHostName(environment.getProperty("xbee.serialServerHostName"));
+        handler.setSerialServerPortNumber(Integer.parseInt(environment.getProperty("xbee.serialServerPortNumber")));
+        handler.setRemoteCommandAddress(environment.getProperty("xbee.remoteCommand.address"));
+        handler.setDevices(environment.getProperty("xbee.devices"));
+        // every run starts from scratch
+        handler.setConfigCacheFile("");
+        handler.setCaptureFile("");
+        return handler;
+    }
+}
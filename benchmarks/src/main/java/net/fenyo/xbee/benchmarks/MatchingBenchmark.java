@@ -0,0 +1,97 @@
+package net.fenyo.xbee.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+import net.fenyo.xbee.serial.*;
+import org.openjdk.jmh.annotations.*;
+
+// matching of received frames with waiters, with waiters pending requests
+// (frame ids) or subscribed remote nodes (addresses)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingBenchmark {
+    @Param({ "1", "16", "128", "254" })
+    public int waiters;
+
+    private ScheduledExecutorService timer;
+    private ResponseTable responses;
+    private SerialReader reader;
+    private XBeeFrame response;
+    private XBeeFrame[] samples;
+    private XBeeFrame[] stored;
+    private int next = 0;
+
+    private static long getAddress(final int i) {
+        return 0x0013a20040000000L + i * 0x7e11L;
+    }
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(0);
+        timer = Executors.newSingleThreadScheduledExecutor();
+
+        // ids 2 to waiters are pending during the whole run, id 1 is the one
+        // that is matched
+        responses = new ResponseTable(timer);
+        for (int id = 2; id <= waiters; id++)
+            responses.expect(id, 3600000);
+        response = Streams.remoteResponse(1, getAddress(0), random);
+
+        final Executor direct = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        };
+        reader = new SerialReader(null, timer);
+        samples = new XBeeFrame[waiters];
+        stored = new XBeeFrame[waiters];
+        for (int i = 0; i < waiters; i++) {
+            reader.subscribe(0x82, getAddress(i), new FrameListener() {
+                @Override
+                public void frameReceived(final XBeeFrame frame) {
+                }
+            }, direct);
+            samples[i] = Streams.ioSample(getAddress(i), random);
+
+            // RX frames are not subscribed: they are stored in the frames list
+            final byte[] content = new byte[8 + 2 + 4];
+            System.arraycopy(samples[i].getContent(), 0, content, 0, 8);
+            stored[i] = new XBeeFrame(0x80, content);
+            reader.frameDecoded(stored[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    // a request is sent and its response is received
+    @Benchmark
+    public boolean frameId() {
+        responses.expect(1, 3600000);
+        return responses.complete(response);
+    }
+
+    // an IO sample is pushed to the subscriber of its source address
+    @Benchmark
+    public void address() {
+        reader.frameDecoded(samples[next]);
+        if (++next == waiters)
+            next = 0;
+    }
+
+    // a frame is looked up in the frames list by its source address, the
+    // worst case being the last one
+    @Benchmark
+    public XBeeFrame storedAddress() throws InterruptedException {
+        final XBeeFrame frame = reader.getFrameWithApiIdAndAddress(0x80, stored[waiters - 1].getSourceAddress(), 0);
+        reader.frameDecoded(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,95 @@
+package net.fenyo.xbee.benchmarks;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import net.fenyo.xbee.serial.*;
+
+// API mode 2 byte streams fed to the decoder
+public class Streams {
+    // IO sample of a remote command, as sent every 100 ms by each remote node
+    public static XBeeFrame ioSample(final long address, final Random random) {
+        final byte[] content = new byte[19];
+        for (int i = 0; i < 8; i++)
+            content[i] = (byte) (address >> (56 - 8 * i));
+        content[8] = (byte) 0xff; // rssi
+        content[9] = 0;
+        content[10] = 1; // number of samples
+        content[11] = 0x06; // channel indicator
+        content[12] = (byte) 0x9d;
+        for (int i = 13; i < 19; i++)
+            content[i] = (byte) random.nextInt(256);
+        return new XBeeFrame(0x82, content);
+    }
+
+    // remote AT command response
+    public static XBeeFrame remoteResponse(final int frame_id, final long address, final Random random) {
+        final byte[] content = new byte[8 + 2 + 3 + 1];
+        for (int i = 0; i < 8; i++)
+            content[i] = (byte) (address >> (56 - 8 * i));
+        content[8] = (byte) 0xff;
+        content[9] = (byte) 0xfe;
+        content[10] = 'D';
+        content[11] = '4';
+        content[12] = 0;
+        content[13] = (byte) random.nextInt(256);
+        return new XBeeFrame(0x97, frame_id, content);
+    }
+
+    public static byte[] encode(final List<XBeeFrame> frames) {
+        int length = 0;
+        for (final XBeeFrame frame : frames)
+            length += frame.getMaxEncodedLength();
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (final XBeeFrame frame : frames)
+            frame.encode(buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    // nb_frames valid frames from nb_devices remote nodes
+    // noisy: with XON/XOFF, garbage and truncated frames between valid frames
+    // (escapes are always present, since addresses and samples contain control
+    // characters)
+    public static byte[] synthetic(final int nb_frames, final int nb_devices, final boolean noisy) {
+        final Random random = new Random(0);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < nb_frames; i++) {
+            final long address = 0x0013a20040000000L + random.nextInt(nb_devices) * 0x7e11L;
+            final XBeeFrame frame = (i % 4 == 3) ? remoteResponse(1 + i % 255, address, random)
+                    : ioSample(address, random);
+            final byte[] bytes = encode(Collections.singletonList(frame));
+            if (noisy) {
+                if (random.nextInt(8) == 0) {
+                    // garbage, as received outside of API frames
+                    final byte[] garbage = new byte[1 + random.nextInt(16)];
+                    random.nextBytes(garbage);
+                    for (int j = 0; j < garbage.length; j++)
+                        if (garbage[j] == 0x7e)
+                            garbage[j] = 0;
+                    stream.write(garbage, 0, garbage.length);
+                }
+                if (random.nextInt(16) == 0)
+                    // truncated frame, dropped by the next start delimiter
+                    stream.write(bytes, 0, 1 + random.nextInt(bytes.length - 1));
+                final int xon = random.nextInt(4) == 0 ? 1 + random.nextInt(bytes.length - 1) : -1;
+                for (int j = 0; j < bytes.length; j++) {
+                    if (j == xon)
+                        stream.write(random.nextBoolean() ? 0x11 : 0x13);
+                    stream.write(bytes[j]);
+                }
+            } else
+                stream.write(bytes, 0, bytes.length);
+        }
+        return stream.toByteArray();
+    }
+
+    // bytes received from the coordinator in a capture written by LinkCapture
+    public static byte[] read(final String file_name) throws IOException {
+        final CaptureFile capture = new CaptureFile(new File(file_name));
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        while (capture.next())
+            if (capture.getDirection() == LinkCapture.RECEIVED)
+                stream.write(capture.getBytes(), 0, capture.getLength());
+        return stream.toByteArray();
+    }
+}
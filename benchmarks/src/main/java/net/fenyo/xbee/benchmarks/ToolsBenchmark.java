@@ -0,0 +1,55 @@
+package net.fenyo.xbee.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+import net.fenyo.xbee.serial.*;
+import org.openjdk.jmh.annotations.*;
+
+// formatting and parsing helpers used when logging and handling responses
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ToolsBenchmark {
+    // AT command response value length (SH/SL: 4, NI: up to 20)
+    @Param({ "2", "8", "20" })
+    public int length;
+
+    private byte[] value;
+    private XBeeFrame frame;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(0);
+        value = new byte[length];
+        random.nextBytes(value);
+        frame = Streams.ioSample(0x0013a200409b7a9cL, random);
+    }
+
+    @Benchmark
+    public String bytesArrayToString() {
+        return SerialPortHandler.bytesArrayToString(value);
+    }
+
+    @Benchmark
+    public String byteToBinaryString() {
+        return Tools.byteToBinaryString(value[0]);
+    }
+
+    @Benchmark
+    public long parseAddress() {
+        return Tools.parseAddress("0013a200409b7a9c");
+    }
+
+    @Benchmark
+    public String addressToString() {
+        return Tools.addressToString(0x0013a200409b7a9cL);
+    }
+
+    @Benchmark
+    public String frameAddress() {
+        return frame.getAddress();
+    }
+}
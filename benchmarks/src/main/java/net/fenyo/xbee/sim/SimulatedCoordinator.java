@@ -0,0 +1,409 @@
+package net.fenyo.xbee.sim;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import net.fenyo.xbee.serial.*;
+import org.apache.commons.logging.*;
+import org.springframework.scheduling.concurrent.*;
+
+// one connection to the simulator: frames are decoded by the reader thread,
+// responses and unsolicited frames are written by the scheduler thread, after
+// their simulated delay
+public class SimulatedCoordinator implements Runnable, FrameDecoder.Listener {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    // bytes that API mode 2 escapes
+    private static final byte[] ESCAPED = { 0x7e, 0x7d, 0x11, 0x13 };
+
+    private final XBeeSimulator simulator;
+    private final Socket socket;
+    private final OutputStream output;
+    private final FrameDecoder decoder = new FrameDecoder(this);
+    private final ScheduledExecutorService scheduler;
+    private final Thread thread;
+
+    // a seeded run is reproducible as long as each generator is used by a
+    // single thread, in an order that does not depend on timing: the reader
+    // thread has its own, and so do the IO samples of each node, the modem
+    // status frames and each delayed frame
+    private final Random reader_random; // threads: reader, once started
+
+    // threads: reader
+    private boolean command_mode = false;
+    private int plus_count = 0;
+    private final StringBuilder line = new StringBuilder();
+
+    // set by the scheduler thread when the guard time has elapsed
+    private volatile boolean entering_command_mode = false;
+
+    public SimulatedCoordinator(final XBeeSimulator simulator, final Socket socket, final int index,
+            final long seed) throws IOException {
+        this.simulator = simulator;
+        this.socket = socket;
+        output = new BufferedOutputStream(socket.getOutputStream());
+        reader_random = new Random(seed);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("XBeeSimulator-" + index
+                + "-"));
+        thread = new Thread(this, "XBeeSimulator-" + index + "-reader");
+    }
+
+    public void start() {
+        if (simulator.getSampleInterval() > 0)
+            for (final long node : simulator.getNodes()) {
+                final Random node_random = new Random(reader_random.nextLong());
+                scheduler.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendIOSample(node, node_random);
+                    }
+                }, node_random.nextInt((int) simulator.getSampleInterval()), simulator.getSampleInterval(),
+                        TimeUnit.MILLISECONDS);
+            }
+        if (simulator.getStatusInterval() > 0) {
+            final Random status_random = new Random(reader_random.nextLong());
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    // coordinator started
+                    send(new XBeeFrame(0x8a, new byte[] { 0x06 }), status_random);
+                }
+            }, simulator.getStatusInterval(), simulator.getStatusInterval(), TimeUnit.MILLISECONDS);
+        }
+        thread.start();
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            socket.close();
+        } catch (final IOException ex) {
+            log.warn(ex);
+        }
+        simulator.connectionClosed(this);
+    }
+
+    // threads: reader
+    @Override
+    public void run() {
+        final byte[] buffer = new byte[1024];
+        try {
+            final InputStream input = socket.getInputStream();
+            int nbytes;
+            while ((nbytes = input.read(buffer)) != -1)
+                decoder.decode(buffer, 0, nbytes);
+        } catch (final IOException ex) {
+            log.debug(ex);
+        } finally {
+            close();
+        }
+    }
+
+    private void write(final byte[] bytes, final Random random) {
+        synchronized (output) {
+            try {
+                if (!simulator.getFragment()) {
+                    output.write(bytes);
+                    output.flush();
+                    return;
+                }
+                int offset = 0;
+                while (offset < bytes.length) {
+                    final int length = Math.min(bytes.length - offset, 1 + random.nextInt(8));
+                    output.write(bytes, offset, length);
+                    output.flush();
+                    offset += length;
+                }
+            } catch (final IOException ex) {
+                log.debug(ex);
+            }
+        }
+    }
+
+    private void send(final XBeeFrame frame, final Random random) {
+        try {
+            byte[] bytes = frame.getRawContent();
+            if (random.nextDouble() < simulator.getXon()) {
+                // flow control byte inside the frame, dropped by the receiver
+                final int position = 1 + random.nextInt(bytes.length - 1);
+                final byte[] noisy = new byte[bytes.length + 1];
+                System.arraycopy(bytes, 0, noisy, 0, position);
+                noisy[position] = random.nextBoolean() ? (byte) 0x11 : (byte) 0x13;
+                System.arraycopy(bytes, position, noisy, position + 1, bytes.length - position);
+                bytes = noisy;
+            }
+            write(bytes, random);
+        } catch (final UnsupportedEncodingException ex) {
+            log.error(ex);
+        }
+    }
+
+    // threads: reader
+    private void sendLater(final XBeeFrame frame, final long delay) {
+        final Random frame_random = new Random(reader_random.nextLong());
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    send(frame, frame_random);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException ex) {
+            // connection closed
+        }
+    }
+
+    // threads: reader
+    private long remoteDelay() {
+        if (simulator.getJitter() <= 0)
+            return simulator.getLatency();
+        return simulator.getLatency() + (long) (reader_random.nextDouble() * simulator.getJitter());
+    }
+
+    private static long getAddress(final byte[] content, final int offset) {
+        long address = 0;
+        for (int i = 0; i < 8; i++)
+            address = (address << 8) | (content[offset + i] & 0xff);
+        return address;
+    }
+
+    private static void putAddress(final byte[] content, final int offset, final long address) {
+        for (int i = 0; i < 8; i++)
+            content[offset + i] = (byte) (address >> (56 - 8 * i));
+    }
+
+    private static String hex(final byte[] value) {
+        String retval = "";
+        for (final byte b : value)
+            retval += ((0xff & b) < 16 ? "0" : "") + Integer.toHexString(0xff & b);
+        retval = retval.replaceFirst("^0+", "").toUpperCase();
+        return retval.length() == 0 ? "0" : retval;
+    }
+
+    // the value keeps the size of the previous one, if it is larger
+    private static byte[] unhex(final String hex, final byte[] previous) {
+        final int length = Math.max((hex.length() + 1) / 2, previous == null ? 0 : previous.length);
+        final byte[] value = new byte[length];
+        long v = Long.parseLong(hex, 16);
+        for (int i = length - 1; i >= 0; i--) {
+            value[i] = (byte) v;
+            v >>>= 8;
+        }
+        return value;
+    }
+
+    // threads: reader
+    @Override
+    public void frameDecoded(final XBeeFrame frame) {
+        final byte[] content = frame.getContent();
+        switch (frame.getApiId()) {
+        case 0x08:
+        case 0x09:
+            if (content.length < 2) {
+                log.warn("short AT command frame");
+                return;
+            }
+            localCommand(frame.getId(), new String(content, 0, 2), Arrays.copyOfRange(content, 2, content.length));
+            return;
+
+        case 0x17:
+            if (content.length < 13) {
+                log.warn("short remote AT command frame");
+                return;
+            }
+            remoteCommand(frame.getId(), getAddress(content, 0), new String(content, 11, 2),
+                    Arrays.copyOfRange(content, 13, content.length));
+            return;
+
+        case 0x00:
+            if (content.length < 9) {
+                log.warn("short transmit request frame");
+                return;
+            }
+            transmit(frame.getId(), getAddress(content, 0));
+            return;
+
+        default:
+            log.warn("unsupported api id " + Integer.toHexString(frame.getApiId()));
+        }
+    }
+
+    // threads: reader
+    private void localCommand(final int frame_id, final String command, final byte[] parameter) {
+        byte[] value = new byte[0];
+        int status = 0;
+        if (command.equals("FR"))
+            scheduleReset();
+        else if (!command.equals("WR") && !command.equals("AC")) {
+            if (parameter.length > 0)
+                simulator.setParameter(command, parameter);
+            else if ((value = simulator.getParameter(command)) == null) {
+                value = new byte[0];
+                status = 2; // invalid command
+            }
+        }
+        if (frame_id == 0)
+            return;
+        final byte[] response = new byte[3 + value.length];
+        response[0] = (byte) command.charAt(0);
+        response[1] = (byte) command.charAt(1);
+        response[2] = (byte) status;
+        System.arraycopy(value, 0, response, 3, value.length);
+        send(new XBeeFrame(0x88, frame_id, response), reader_random);
+    }
+
+    // threads: reader
+    private void remoteCommand(final int frame_id, final long node, final String command, final byte[] parameter) {
+        byte[] value = new byte[0];
+        int status = 0;
+        long delay = remoteDelay();
+        if (!simulator.isNode(node) || reader_random.nextDouble() < simulator.getLoss()) {
+            status = 4; // no response
+            delay = simulator.getRemoteTimeout();
+        } else if (parameter.length > 0)
+            simulator.setNodeParameter(node, command, parameter);
+        else if ((value = simulator.getNodeParameter(node, command)) == null) {
+            value = new byte[0];
+            status = 2; // invalid command
+        }
+        if (frame_id == 0)
+            return;
+        final byte[] response = new byte[8 + 2 + 3 + value.length];
+        putAddress(response, 0, node);
+        response[8] = (byte) 0xff;
+        response[9] = (byte) 0xfe;
+        response[10] = (byte) command.charAt(0);
+        response[11] = (byte) command.charAt(1);
+        response[12] = (byte) status;
+        System.arraycopy(value, 0, response, 13, value.length);
+        sendLater(new XBeeFrame(0x97, frame_id, response), delay);
+    }
+
+    // threads: reader
+    private void transmit(final int frame_id, final long node) {
+        if (frame_id == 0)
+            return;
+        if (node == 0xffffL)
+            // broadcast, never acknowledged
+            sendLater(new XBeeFrame(0x89, frame_id, new byte[] { 0x00 }), remoteDelay());
+        else if (!simulator.isNode(node) || reader_random.nextDouble() < simulator.getLoss())
+            // no ack
+            sendLater(new XBeeFrame(0x89, frame_id, new byte[] { 0x01 }), simulator.getRemoteTimeout());
+        else
+            sendLater(new XBeeFrame(0x89, frame_id, new byte[] { 0x00 }), remoteDelay());
+    }
+
+    // threads: scheduler
+    // buttons released and analog inputs at their maximum value, so that
+    // SerialPortHandler never triggers an HTTP action
+    private void sendIOSample(final long node, final Random random) {
+        final byte[] content = new byte[19];
+        putAddress(content, 0, node);
+        // rssi
+        content[8] = random.nextDouble() < simulator.getEscapes() ? ESCAPED[random.nextInt(ESCAPED.length)] : 0x28;
+        content[9] = 0x00; // options
+        content[10] = 0x01; // 1 sample
+        content[11] = 0x07; // D8, A0, A1
+        content[12] = (byte) 0xff; // D0 to D7
+        content[13] = 0x00;
+        content[14] = 0x00;
+        content[15] = 0x03;
+        content[16] = (byte) 0xff;
+        content[17] = 0x03;
+        content[18] = (byte) 0xff;
+        send(new XBeeFrame(0x82, content), random);
+    }
+
+    // threads: reader
+    private void scheduleReset() {
+        // hardware reset
+        sendLater(new XBeeFrame(0x8a, new byte[] { 0x00 }), 100);
+    }
+
+    // threads: reader
+    @Override
+    public void outsideFrame(final byte[] bytes, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            final char c = (char) (bytes[i] & 0xff);
+            if (entering_command_mode) {
+                entering_command_mode = false;
+                command_mode = true;
+            }
+
+            if (!command_mode) {
+                if (c != '+') {
+                    plus_count = 0;
+                    continue;
+                }
+                if (++plus_count == 3) {
+                    plus_count = 0;
+                    final Random ok_random = new Random(reader_random.nextLong());
+                    try {
+                        scheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                entering_command_mode = true;
+                                write(new byte[] { 'O', 'K', '\r' }, ok_random);
+                            }
+                        }, simulator.getGuardTime(), TimeUnit.MILLISECONDS);
+                    } catch (final RejectedExecutionException ex) {
+                        // connection closed
+                    }
+                }
+                continue;
+            }
+
+            if (c != '\r') {
+                line.append(c);
+                continue;
+            }
+            final String command = line.toString();
+            line.setLength(0);
+            write(atCommand(command).getBytes(), reader_random);
+        }
+    }
+
+    // threads: reader
+    // returns the answer to a command mode command
+    private String atCommand(final String command) {
+        if (!command.startsWith("AT"))
+            return "ERROR\r";
+        if (command.length() == 2)
+            return "OK\r";
+        if (command.length() < 4)
+            return "ERROR\r";
+        final String name = command.substring(2, 4);
+
+        if (name.equals("CN")) {
+            command_mode = false;
+            return "OK\r";
+        }
+        if (name.equals("FR")) {
+            command_mode = false;
+            scheduleReset();
+            return "OK\r";
+        }
+        if (name.equals("WR") || name.equals("AC"))
+            return "OK\r";
+        if (name.equals("ND")) {
+            String retval = "";
+            for (final long node : simulator.getNodes())
+                retval += hex(simulator.getNodeParameter(node, "MY")) + "\r"
+                        + hex(simulator.getNodeParameter(node, "SH")) + "\r"
+                        + hex(simulator.getNodeParameter(node, "SL")) + "\r" + "28\r"
+                        + new String(simulator.getNodeParameter(node, "NI")) + "\r\r";
+            return retval + "\r";
+        }
+
+        final byte[] previous = simulator.getParameter(name);
+        if (command.length() == 4)
+            return previous == null ? "ERROR\r" : hex(previous) + "\r";
+        try {
+            simulator.setParameter(name, unhex(command.substring(4).trim(), previous));
+            return "OK\r";
+        } catch (final NumberFormatException ex) {
+            return "ERROR\r";
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package net.fenyo.xbee.sim;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import net.fenyo.xbee.serial.*;
+import org.apache.commons.logging.*;
+
+// TCP server that behaves like a coordinator relayed by socat, for the parts of
+// the protocol used by SerialPortHandler, so that the whole stack can run
+// without any hardware
+// it can be started in process (port 0 selects a free port) or from the
+// command line:
+// java net.fenyo.xbee.sim.XBeeSimulator [-port 9003] [-nodes addr,...]
+// [-ap 2] [-guardTime ms] [-latency ms] [-jitter ms] [-loss p]
+// [-remoteTimeout ms] [-sampleInterval ms] [-statusInterval ms] [-xon p]
+// [-escapes p] [-fragment] [-seed n]
+// the module state (parameters, API mode) is shared by the successive
+// connections, as with a real module
+public class XBeeSimulator implements Runnable {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private int port = 9003;
+    private long address = 0x0013a200409b7a9cL;
+    private long[] nodes = new long[0]; // remote nodes
+    private int apiMode = 2;
+    private long guardTime = 1000; // before OK is sent in reply to +++
+    private long latency = 20; // remote command round trip
+    private long jitter = 0; // added to latency, uniformly distributed
+    private double loss = 0; // probability of a remote command to fail
+    private long remoteTimeout = 1000; // before a lost remote command is reported
+    private long sampleInterval = 0; // IO samples of each node, 0 to disable
+    private long statusInterval = 0; // modem status frames, 0 to disable
+    private double xon = 0; // probability of an XON or XOFF byte inside a frame
+    private double escapes = 0; // probability of an IO sample to need escapes
+    private boolean fragment = false; // frames are written in random pieces
+    private long seed = 1;
+
+    // local parameters
+    private final Map<String, byte[]> parameters = new HashMap<String, byte[]>();
+    // parameters of the remote nodes
+    private final Map<Long, Map<String, byte[]>> node_parameters = new HashMap<Long, Map<String, byte[]>>();
+
+    // seeds of the connections, threads: XBeeSimulator
+    private Random random = null;
+    private ServerSocket server = null;
+    private Thread thread = null;
+    private volatile boolean closed = false;
+    private final List<SimulatedCoordinator> connections = new ArrayList<SimulatedCoordinator>();
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public long getAddress() {
+        return address;
+    }
+
+    public void setAddress(long address) {
+        this.address = address;
+    }
+
+    public long[] getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(long[] nodes) {
+        this.nodes = nodes;
+    }
+
+    public int getApiMode() {
+        return apiMode;
+    }
+
+    public void setApiMode(int apiMode) {
+        this.apiMode = apiMode;
+    }
+
+    public long getGuardTime() {
+        return guardTime;
+    }
+
+    public void setGuardTime(long guardTime) {
+        this.guardTime = guardTime;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    public long getJitter() {
+        return jitter;
+    }
+
+    public void setJitter(long jitter) {
+        this.jitter = jitter;
+    }
+
+    public double getLoss() {
+        return loss;
+    }
+
+    public void setLoss(double loss) {
+        this.loss = loss;
+    }
+
+    public long getRemoteTimeout() {
+        return remoteTimeout;
+    }
+
+    public void setRemoteTimeout(long remoteTimeout) {
+        this.remoteTimeout = remoteTimeout;
+    }
+
+    public long getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public void setSampleInterval(long sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
+    public long getStatusInterval() {
+        return statusInterval;
+    }
+
+    public void setStatusInterval(long statusInterval) {
+        this.statusInterval = statusInterval;
+    }
+
+    public double getXon() {
+        return xon;
+    }
+
+    public void setXon(double xon) {
+        this.xon = xon;
+    }
+
+    public double getEscapes() {
+        return escapes;
+    }
+
+    public void setEscapes(double escapes) {
+        this.escapes = escapes;
+    }
+
+    public boolean getFragment() {
+        return fragment;
+    }
+
+    public void setFragment(boolean fragment) {
+        this.fragment = fragment;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    // the port actually bound, once started
+    public int getLocalPort() {
+        return server.getLocalPort();
+    }
+
+    private static byte[] addressBytes(final long address, final int shift) {
+        return new byte[] { (byte) (address >> (shift + 24)), (byte) (address >> (shift + 16)),
+                (byte) (address >> (shift + 8)), (byte) (address >> shift) };
+    }
+
+    // default configuration of a coordinator that SerialPortHandler accepts
+    // without writing anything
+    private void initParameters() throws UnsupportedEncodingException {
+        parameters.put("ID", new byte[] { (byte) 0xaf, (byte) 0xae });
+        parameters.put("CE", new byte[] { 0x01 });
+        parameters.put("SH", addressBytes(address, 32));
+        parameters.put("SL", addressBytes(address, 0));
+        parameters.put("NI", "coordinator".getBytes("ISO8859-1"));
+        parameters.put("SM", new byte[] { 0x00 });
+        parameters.put("DH", new byte[] { 0, 0, 0, 0 });
+        parameters.put("DL", new byte[] { 0, 0, 0, 0 });
+        parameters.put("MY", new byte[] { (byte) 0xff, (byte) 0xfe });
+        parameters.put("MM", new byte[] { 0x00 });
+        parameters.put("RN", new byte[] { 0x00 });
+        parameters.put("RR", new byte[] { 0x00 });
+        parameters.put("NT", new byte[] { 0x19 });
+        parameters.put("NO", new byte[] { 0x00 });
+        parameters.put("SC", new byte[] { 0x1f, (byte) 0xfe });
+        parameters.put("SD", new byte[] { 0x04 });
+        parameters.put("SP", new byte[] { 0x03, (byte) 0xe8 });
+        parameters.put("AP", new byte[] { (byte) apiMode });
+
+        for (int i = 0; i < nodes.length; i++) {
+            final Map<String, byte[]> node = new HashMap<String, byte[]>();
+            node.put("SH", addressBytes(nodes[i], 32));
+            node.put("SL", addressBytes(nodes[i], 0));
+            node.put("MY", new byte[] { (byte) 0xff, (byte) 0xfe });
+            node.put("NI", ("node" + i).getBytes("ISO8859-1"));
+            node.put("CE", new byte[] { 0x00 });
+            node.put("SM", new byte[] { 0x00 });
+            node.put("SP", new byte[] { 0x03, (byte) 0xe8 });
+            node.put("IR", new byte[] { 0x00, 0x64 });
+            for (final String output : new String[] { "D4", "D5", "D6", "M0", "M1" })
+                node.put(output, new byte[] { 0x00 });
+            node_parameters.put(nodes[i], node);
+        }
+    }
+
+    // returns null if the parameter does not exist
+    synchronized byte[] getParameter(final String name) {
+        return parameters.get(name);
+    }
+
+    synchronized void setParameter(final String name, final byte[] value) {
+        parameters.put(name, value);
+    }
+
+    boolean isNode(final long node) {
+        return node_parameters.containsKey(node);
+    }
+
+    // returns null if the node or the parameter does not exist
+    synchronized byte[] getNodeParameter(final long node, final String name) {
+        final Map<String, byte[]> node_parameter = node_parameters.get(node);
+        return node_parameter == null ? null : node_parameter.get(name);
+    }
+
+    synchronized void setNodeParameter(final long node, final String name, final byte[] value) {
+        final Map<String, byte[]> node_parameter = node_parameters.get(node);
+        if (node_parameter != null)
+            node_parameter.put(name, value);
+    }
+
+    public void start() throws IOException {
+        random = new Random(seed);
+        initParameters();
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        log.info("coordinator simulator listening on port " + server.getLocalPort());
+        thread = new Thread(this, "XBeeSimulator");
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        int count = 0;
+        while (!closed)
+            try {
+                final Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                final SimulatedCoordinator connection = new SimulatedCoordinator(this, socket, count++,
+                        random.nextLong());
+                synchronized (connections) {
+                    connections.add(connection);
+                }
+                connection.start();
+            } catch (final IOException ex) {
+                if (!closed)
+                    log.error(ex);
+            }
+    }
+
+    void connectionClosed(final SimulatedCoordinator connection) {
+        synchronized (connections) {
+            connections.remove(connection);
+        }
+    }
+
+    public void close() throws InterruptedException {
+        closed = true;
+        try {
+            server.close();
+        } catch (final IOException ex) {
+            log.warn(ex);
+        }
+        thread.join();
+        final List<SimulatedCoordinator> to_close;
+        synchronized (connections) {
+            to_close = new ArrayList<SimulatedCoordinator>(connections);
+        }
+        for (final SimulatedCoordinator connection : to_close)
+            connection.close();
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final XBeeSimulator simulator = new XBeeSimulator();
+        for (int i = 0; i < args.length; i++) {
+            final String option = args[i];
+            if (option.equals("-fragment")) {
+                simulator.setFragment(true);
+                continue;
+            }
+            if (i + 1 == args.length) {
+                System.err.println("missing value for " + option);
+                System.exit(1);
+            }
+            final String value = args[++i];
+            if (option.equals("-port"))
+                simulator.setPort(Integer.parseInt(value));
+            else if (option.equals("-address"))
+                simulator.setAddress(Tools.parseAddress(value));
+            else if (option.equals("-nodes"))
+                simulator.setNodes(Tools.parseAddresses(value));
+            else if (option.equals("-ap"))
+                simulator.setApiMode(Integer.parseInt(value));
+            else if (option.equals("-guardTime"))
+                simulator.setGuardTime(Long.parseLong(value));
+            else if (option.equals("-latency"))
+                simulator.setLatency(Long.parseLong(value));
+            else if (option.equals("-jitter"))
+                simulator.setJitter(Long.parseLong(value));
+            else if (option.equals("-loss"))
+                simulator.setLoss(Double.parseDouble(value));
+            else if (option.equals("-remoteTimeout"))
+                simulator.setRemoteTimeout(Long.parseLong(value));
+            else if (option.equals("-sampleInterval"))
+                simulator.setSampleInterval(Long.parseLong(value));
+            else if (option.equals("-statusInterval"))
+                simulator.setStatusInterval(Long.parseLong(value));
+            else if (option.equals("-xon"))
+                simulator.setXon(Double.parseDouble(value));
+            else if (option.equals("-escapes"))
+                simulator.setEscapes(Double.parseDouble(value));
+            else if (option.equals("-seed"))
+                simulator.setSeed(Long.parseLong(value));
+            else {
+                System.err.println("unknown option " + option);
+                System.exit(1);
+            }
+        }
+        simulator.start();
+        simulator.thread.join();
+    }
+}
@@ -0,0 +1,25 @@
+package net.fenyo.xbee.metrics;
+
+import java.util.concurrent.atomic.*;
+
+// one counter per value of a byte label (API id), created on first use
+public class CounterArray {
+    private final AtomicReferenceArray<StripedCounter> counters = new AtomicReferenceArray<StripedCounter>(256);
+
+    public StripedCounter get(final int index) {
+        final StripedCounter counter = counters.get(index & 0xff);
+        if (counter != null)
+            return counter;
+        counters.compareAndSet(index & 0xff, null, new StripedCounter());
+        return counters.get(index & 0xff);
+    }
+
+    public void increment(final int index) {
+        get(index).increment();
+    }
+
+    // returns null if this counter has never been used
+    public StripedCounter getIfPresent(final int index) {
+        return counters.get(index & 0xff);
+    }
+}
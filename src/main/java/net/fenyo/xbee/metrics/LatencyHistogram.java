@@ -0,0 +1,85 @@
+package net.fenyo.xbee.metrics;
+
+import java.util.concurrent.atomic.*;
+
+// log-linear histogram of durations in microseconds, as in HdrHistogram: values
+// below 16 are exact, each further power of 2 is split into 8 buckets, so that
+// quantiles are accurate within 12.5% with a fixed amount of memory, from 1 us
+// to several days
+public class LatencyHistogram {
+    private static final int LINEAR = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = LINEAR + (64 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter sum = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    static int getBucket(final long value) {
+        if (value < LINEAR)
+            return (int) Math.max(value, 0);
+        final int exponent = 63 - Long.numberOfLeadingZeros(value); // >= 4
+        final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    // highest value counted in this bucket
+    static long getUpperBound(final int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+        final int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        final int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        final long lower = ((long) (SUB_BUCKETS + sub)) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    public void record(final long micros) {
+        counts.incrementAndGet(getBucket(micros));
+        count.increment();
+        sum.add(micros);
+        long current;
+        while (micros > (current = max.get()) && !max.compareAndSet(current, micros))
+            ;
+    }
+
+    // start: System.nanoTime() when the measured operation started
+    public void recordSince(final long start) {
+        record((System.nanoTime() - start) / 1000);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // quantile between 0 and 1, 0 if the histogram is empty
+    // the buckets are read one by one while they may be updated: the result is
+    // approximate under load, which is good enough for monitoring
+    public long getQuantile(final double quantile) {
+        long total = 0;
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(getUpperBound(i), max.get());
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,104 @@
+package net.fenyo.xbee.metrics;
+
+import java.io.*;
+import java.util.*;
+
+// process wide metrics, written in the Prometheus text format by the /metrics
+// endpoint
+// updating a metric never blocks: counters are striped and histograms use
+// atomic buckets
+public class Metrics {
+    public interface Gauge {
+        long get();
+    }
+
+    private static class Entry {
+        final String name;
+        final String help;
+        final Object metric;
+
+        Entry(final String name, final String help, final Object metric) {
+            this.name = name;
+            this.help = help;
+            this.metric = metric;
+        }
+    }
+
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    private static synchronized <T> T register(final String name, final String help, final T metric) {
+        entries.put(name, new Entry(name, help, metric));
+        return metric;
+    }
+
+    public static final CounterArray FRAMES_RECEIVED = register("xbee_frames_received_total",
+            "API frames received, by API id", new CounterArray());
+    public static final CounterArray FRAMES_SENT = register("xbee_frames_sent_total", "API frames sent, by API id",
+            new CounterArray());
+    public static final StripedCounter CHECKSUM_FAILURES = register("xbee_checksum_failures_total",
+            "frames received with an invalid checksum", new StripedCounter());
+    public static final StripedCounter XON_XOFF = register("xbee_xon_xoff_total",
+            "XON and XOFF characters removed from the serial stream", new StripedCounter());
+    public static final StripedCounter PARTIAL_FRAMES = register("xbee_partial_frames_dropped_total",
+            "partial frames dropped (timeout or new start delimiter)", new StripedCounter());
+    public static final CounterArray FRAMES_EXPIRED = register("xbee_frames_expired_total",
+            "unclaimed frames evicted from the frame store after their time to live, by API id", new CounterArray());
+    public static final CounterArray FRAMES_OVERFLOW = register("xbee_frames_overflow_total",
+            "unclaimed frames dropped because the frame store was full, by API id", new CounterArray());
+    public static final StripedCounter LATE_RESPONSES = register("xbee_late_responses_total",
+            "responses received after their requester has timed out", new StripedCounter());
+    public static final StripedCounter RECONNECTS = register("xbee_reconnects_total",
+            "connections to the serial port relay", new StripedCounter());
+    public static final StripedCounter AT_TIMEOUTS = register("xbee_at_timeouts_total",
+            "local AT commands without response", new StripedCounter());
+    public static final StripedCounter REMOTE_AT_TIMEOUTS = register("xbee_remote_at_timeouts_total",
+            "remote AT commands without response", new StripedCounter());
+    public static final StripedCounter REMOTE_AT_RETRIES = register("xbee_remote_at_retries_total",
+            "remote AT commands sent again by the web controller", new StripedCounter());
+    public static final LatencyHistogram AT_RTT = register("xbee_at_rtt_microseconds",
+            "round trip time of local AT command frames", new LatencyHistogram());
+    public static final LatencyHistogram REMOTE_AT_RTT = register("xbee_remote_at_rtt_microseconds",
+            "round trip time of remote AT command frames, pacing delay excluded", new LatencyHistogram());
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    public static void gauge(final String name, final String help, final Gauge gauge) {
+        register(name, help, gauge);
+    }
+
+    private static List<Entry> getEntries() {
+        synchronized (Metrics.class) {
+            return new ArrayList<Entry>(entries.values());
+        }
+    }
+
+    public static void write(final PrintWriter writer) {
+        for (final Entry entry : getEntries()) {
+            writer.println("# HELP " + entry.name + " " + entry.help);
+            if (entry.metric instanceof StripedCounter) {
+                writer.println("# TYPE " + entry.name + " counter");
+                writer.println(entry.name + " " + ((StripedCounter) entry.metric).get());
+            } else if (entry.metric instanceof CounterArray) {
+                writer.println("# TYPE " + entry.name + " counter");
+                for (int api_id = 0; api_id < 256; api_id++) {
+                    final StripedCounter counter = ((CounterArray) entry.metric).getIfPresent(api_id);
+                    if (counter != null)
+                        writer.println(entry.name + "{api_id=\"0x" + (api_id < 16 ? "0" : "")
+                                + Integer.toHexString(api_id) + "\"} " + counter.get());
+                }
+            } else if (entry.metric instanceof LatencyHistogram) {
+                final LatencyHistogram histogram = (LatencyHistogram) entry.metric;
+                writer.println("# TYPE " + entry.name + " summary");
+                for (final double quantile : QUANTILES)
+                    writer.println(entry.name + "{quantile=\"" + quantile + "\"} " + histogram.getQuantile(quantile));
+                writer.println(entry.name + "_max " + histogram.getMax());
+                writer.println(entry.name + "_sum " + histogram.getSum());
+                writer.println(entry.name + "_count " + histogram.getCount());
+            } else if (entry.metric instanceof Gauge) {
+                writer.println("# TYPE " + entry.name + " gauge");
+                writer.println(entry.name + " " + ((Gauge) entry.metric).get());
+            }
+        }
+        writer.flush();
+    }
+}
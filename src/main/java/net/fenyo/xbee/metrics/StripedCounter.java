@@ -0,0 +1,33 @@
+package net.fenyo.xbee.metrics;
+
+import java.util.concurrent.atomic.*;
+
+// counter updated by several threads (tomcat, SerialEventLoop, timer): each
+// thread adds to its own stripe, padded to a cache line, and reads sum the
+// stripes (Java 7 has no LongAdder)
+public class StripedCounter {
+    private static final int STRIPES = 16; // power of 2
+    private static final int PADDING = 8; // 8 longs: 64 bytes
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int getIndex() {
+        final long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 4)) & (STRIPES - 1)) * PADDING;
+    }
+
+    public void add(final long value) {
+        cells.getAndAdd(getIndex(), value);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+}
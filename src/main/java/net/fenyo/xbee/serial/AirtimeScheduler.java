@@ -0,0 +1,127 @@
+package net.fenyo.xbee.serial;
+
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import org.apache.commons.logging.*;
+import org.springframework.util.concurrent.*;
+
+// paces the frames sent over the air to each remote node, from the outcome of
+// the previous transmissions (TX status 0x89 and remote AT response 0x97)
+// AIMD: the gap between two frames to the same node shrinks by a constant
+// step after each success and is doubled after each failure, so that we send
+// as fast as the channel allows when it is clear and back off when it is not
+public class AirtimeScheduler {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private static final long INITIAL_GAP = 35;
+    private static final long MIN_GAP = 0;
+    private static final long MAX_GAP = 2000;
+    private static final long DECREASE_STEP = 5;
+
+    private static class Destination {
+        long gap = INITIAL_GAP;
+        long next_slot = 0;
+    }
+
+    private final ConcurrentMap<Long, Destination> destinations = new ConcurrentHashMap<Long, Destination>();
+
+    private Destination getDestination(final long address) {
+        Destination destination = destinations.get(address);
+        if (destination == null) {
+            final Destination new_destination = new Destination();
+            destination = destinations.putIfAbsent(address, new_destination);
+            if (destination == null)
+                destination = new_destination;
+        }
+        return destination;
+    }
+
+    // reserve the next transmission slot to this node
+    // returns the delay in ms to wait for before sending the frame
+    public long reserve(final long address) {
+        final Destination destination = getDestination(address);
+        final long now = System.currentTimeMillis();
+        synchronized (destination) {
+            final long slot = Math.max(now, destination.next_slot);
+            destination.next_slot = slot + destination.gap;
+            return slot - now;
+        }
+    }
+
+    // block until a frame can be sent to this node without being delayed
+    public void awaitSlot(final long address) throws InterruptedException {
+        final Destination destination = getDestination(address);
+        final long delay;
+        synchronized (destination) {
+            delay = destination.next_slot - System.currentTimeMillis();
+        }
+        if (delay > 0)
+            Thread.sleep(delay);
+    }
+
+    public long getGap(final long address) {
+        final Destination destination = getDestination(address);
+        synchronized (destination) {
+            return destination.gap;
+        }
+    }
+
+    public void success(final long address) {
+        final Destination destination = getDestination(address);
+        synchronized (destination) {
+            destination.gap = Math.max(MIN_GAP, destination.gap - DECREASE_STEP);
+        }
+    }
+
+    public void failure(final long address) {
+        final Destination destination = getDestination(address);
+        final long gap;
+        synchronized (destination) {
+            gap = destination.gap = Math.min(MAX_GAP, Math.max(DECREASE_STEP, 2 * destination.gap));
+        }
+        log.debug("backing off: " + gap + " ms between frames to " + Long.toHexString(address));
+    }
+
+    // feed the scheduler with the response to a frame sent to this node
+    // only failures caused by the channel are taken into account
+    public void track(final long address, final ListenableFuture<XBeeFrame> response) {
+        response.addCallback(new ListenableFutureCallback<XBeeFrame>() {
+            @Override
+            public void onSuccess(final XBeeFrame frame) {
+                if (frame == null) {
+                    // timeout
+                    failure(address);
+                    return;
+                }
+                final byte[] content = frame.getContent();
+                switch (frame.getApiId()) {
+                case 0x89:
+                    // 1: no ACK, 2: CCA failure, 3: purged
+                    if (content.length == 1 && content[0] != 0)
+                        failure(address);
+                    else
+                        success(address);
+                    break;
+
+                case 0x97:
+                    // 4: no response
+                    if (content.length >= 8 + 2 + 3 && content[8 + 2 + 2] == 4)
+                        failure(address);
+                    else
+                        success(address);
+                    break;
+
+                default:
+                    break;
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable ex) {
+                // the link went down: the channel is not to blame
+                if (!(ex instanceof ClosedChannelException))
+                    failure(address);
+            }
+        });
+    }
+}
@@ -0,0 +1,90 @@
+package net.fenyo.xbee.serial;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// sequential reader of a capture written by LinkCapture
+// record times are nanoTime values of the JVM that wrote the file: they are
+// rebased on the header of the file, so that records of files written by
+// different runs can be compared
+public class CaptureFile {
+    private final File file;
+    private final ByteBuffer buffer;
+    private final long wall_clock;
+    private final long nano_time;
+
+    // current record
+    private long time = 0;
+    private byte direction = 0;
+    private int length = 0;
+    private byte[] bytes = new byte[1024];
+
+    public CaptureFile(final File file) throws IOException {
+        this.file = file;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+
+        if (buffer.remaining() < LinkCapture.HEADER_SIZE || buffer.getInt() != LinkCapture.MAGIC)
+            throw new IOException(file + ": not a capture file");
+        if (buffer.getInt() != LinkCapture.VERSION)
+            throw new IOException(file + ": unsupported capture version");
+        wall_clock = buffer.getLong();
+        nano_time = buffer.getLong();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // creation time of the file, in ms since the epoch
+    public long getWallClock() {
+        return wall_clock;
+    }
+
+    // reads the next record, returns false at the end of the records
+    public boolean next() throws IOException {
+        if (buffer.remaining() < LinkCapture.RECORD_HEADER_SIZE)
+            return false;
+        final long time = buffer.getLong();
+        final byte direction = buffer.get();
+        final int length = buffer.getInt();
+        if (direction == 0)
+            // zero-filled end of the file
+            return false;
+        if (direction != LinkCapture.RECEIVED && direction != LinkCapture.SENT && direction != LinkCapture.CONNECTED)
+            throw new IOException(file + ": invalid direction " + direction);
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException(file + ": truncated record at offset " + buffer.position());
+        if (bytes.length < length)
+            bytes = new byte[length];
+        buffer.get(bytes, 0, length);
+
+        this.time = time;
+        this.direction = direction;
+        this.length = length;
+        return true;
+    }
+
+    // time of the current record, in ns since the epoch
+    public long getTime() {
+        return wall_clock * 1000000 + (time - nano_time);
+    }
+
+    public byte getDirection() {
+        return direction;
+    }
+
+    // bytes of the current record, valid until the next call to next()
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,155 @@
+package net.fenyo.xbee.serial;
+
+import java.io.*;
+import java.util.*;
+
+// feeds a capture written by LinkCapture back through the frame decoder, at the
+// original speed or as fast as possible
+// usage: java net.fenyo.xbee.serial.CaptureReplay [-max] file...
+// the previous part (.1 suffix) of a file is replayed too, and the files are
+// replayed in the order they were created
+public class CaptureReplay {
+    private final FrameDecoder.Listener received_listener;
+    private final FrameDecoder.Listener sent_listener;
+    private final boolean realtime;
+
+    private FrameDecoder received_decoder = null;
+    private FrameDecoder sent_decoder = null;
+
+    // original time of the first record replayed (ns since the epoch), and
+    // corresponding replay time
+    private boolean started = false;
+    private long first_record = 0;
+    private long replay_start = 0;
+
+    private long chunks = 0;
+    private long nbytes = 0;
+    private long connections = 0;
+
+    // a null listener ignores the corresponding direction
+    public CaptureReplay(final FrameDecoder.Listener received_listener, final FrameDecoder.Listener sent_listener,
+            final boolean realtime) {
+        this.received_listener = received_listener;
+        this.sent_listener = sent_listener;
+        this.realtime = realtime;
+        reset();
+    }
+
+    // new link: frames in progress are lost
+    private void reset() {
+        received_decoder = received_listener != null ? new FrameDecoder(received_listener) : null;
+        sent_decoder = sent_listener != null ? new FrameDecoder(sent_listener) : null;
+    }
+
+    public long getChunks() {
+        return chunks;
+    }
+
+    public long getBytes() {
+        return nbytes;
+    }
+
+    public long getConnections() {
+        return connections;
+    }
+
+    public void replay(final File file) throws IOException, InterruptedException {
+        replay(new CaptureFile(file));
+    }
+
+    public void replay(final CaptureFile capture) throws IOException, InterruptedException {
+        while (capture.next()) {
+            if (realtime) {
+                final long time = capture.getTime();
+                if (!started) {
+                    started = true;
+                    first_record = time;
+                    replay_start = System.nanoTime();
+                }
+                final long delay = (time - first_record) - (System.nanoTime() - replay_start);
+                if (delay > 0)
+                    Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+            }
+
+            switch (capture.getDirection()) {
+            case LinkCapture.CONNECTED:
+                connections++;
+                reset();
+                continue;
+
+            case LinkCapture.RECEIVED:
+                if (received_decoder != null)
+                    received_decoder.decode(capture.getBytes(), 0, capture.getLength());
+                break;
+
+            case LinkCapture.SENT:
+                if (sent_decoder != null)
+                    sent_decoder.decode(capture.getBytes(), 0, capture.getLength());
+                break;
+            }
+            chunks++;
+            nbytes += capture.getLength();
+        }
+    }
+
+    // counts the frames of one direction, by api id
+    private static class Counter implements FrameDecoder.Listener {
+        final long[] frames = new long[256];
+        long outside = 0;
+
+        @Override
+        public void frameDecoded(final XBeeFrame frame) {
+            frames[frame.getApiId()]++;
+        }
+
+        @Override
+        public void outsideFrame(final byte[] bytes, final int offset, final int length) {
+            outside += length;
+        }
+
+        void print(final String name) {
+            for (int api_id = 0; api_id < 256; api_id++)
+                if (frames[api_id] != 0)
+                    System.out.println(name + " api id 0x" + Integer.toHexString(api_id) + ": " + frames[api_id]
+                            + " frames");
+            System.out.println(name + " outside of frames: " + outside + " bytes");
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        boolean realtime = true;
+        final List<CaptureFile> files = new ArrayList<CaptureFile>();
+        for (final String arg : args)
+            if (arg.equals("-max"))
+                realtime = false;
+            else {
+                final File previous = new File(arg + ".1");
+                if (previous.exists())
+                    files.add(new CaptureFile(previous));
+                files.add(new CaptureFile(new File(arg)));
+            }
+        if (files.isEmpty()) {
+            System.err.println("usage: CaptureReplay [-max] file...");
+            System.exit(1);
+        }
+        Collections.sort(files, new Comparator<CaptureFile>() {
+            @Override
+            public int compare(final CaptureFile a, final CaptureFile b) {
+                return Long.compare(a.getWallClock(), b.getWallClock());
+            }
+        });
+
+        final Counter received = new Counter();
+        final Counter sent = new Counter();
+        final CaptureReplay replay = new CaptureReplay(received, sent, realtime);
+        final long start = System.nanoTime();
+        for (final CaptureFile file : files)
+            replay.replay(file);
+        final long duration = System.nanoTime() - start;
+
+        System.out.println(replay.getChunks() + " chunks, " + replay.getBytes() + " bytes, "
+                + replay.getConnections() + " connections, replayed in " + duration / 1000000 + " ms");
+        received.print("received");
+        sent.print("sent");
+    }
+}
@@ -0,0 +1,87 @@
+package net.fenyo.xbee.serial;
+
+import java.util.*;
+
+// remote nodes known by the coordinator, indexed by their 64 bit address
+// nodes are registered at startup and looked up for every frame: lookups are
+// a binary search in a sorted array of primitive addresses, without locking
+// nor boxing, and a registration replaces the whole snapshot
+public class DeviceRegistry {
+    // protects the state of every device
+    private final Object lock = new Object();
+
+    private final long reassert_period;
+
+    private static class Snapshot {
+        final long[] addresses;
+        final RemoteDevice[] devices;
+
+        Snapshot(final long[] addresses, final RemoteDevice[] devices) {
+            this.addresses = addresses;
+            this.devices = devices;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(new long[0], new RemoteDevice[0]);
+
+    public DeviceRegistry(final long reassert_period) {
+        this.reassert_period = reassert_period;
+    }
+
+    // remote_command: the node has buttons, LEDs and a buzzer
+    public synchronized RemoteDevice register(final long address, final boolean remote_command) {
+        final Snapshot current = snapshot;
+        int idx = Arrays.binarySearch(current.addresses, address);
+        if (idx >= 0)
+            return current.devices[idx];
+
+        final RemoteDevice device = new RemoteDevice(address, lock,
+                remote_command ? new RemoteOutputs(lock, reassert_period) : null);
+        idx = -idx - 1;
+        final int size = current.addresses.length;
+        final long[] addresses = new long[size + 1];
+        final RemoteDevice[] devices = new RemoteDevice[size + 1];
+        System.arraycopy(current.addresses, 0, addresses, 0, idx);
+        System.arraycopy(current.devices, 0, devices, 0, idx);
+        addresses[idx] = address;
+        devices[idx] = device;
+        System.arraycopy(current.addresses, idx, addresses, idx + 1, size - idx);
+        System.arraycopy(current.devices, idx, devices, idx + 1, size - idx);
+        snapshot = new Snapshot(addresses, devices);
+        return device;
+    }
+
+    // returns null if the node is unknown
+    public RemoteDevice get(final long address) {
+        final Snapshot current = snapshot;
+        final int idx = Arrays.binarySearch(current.addresses, address);
+        return idx >= 0 ? current.devices[idx] : null;
+    }
+
+    public List<RemoteDevice> getDevices() {
+        return Collections.unmodifiableList(Arrays.asList(snapshot.devices));
+    }
+
+    // the state of the remote nodes is unknown, every output must be sent again
+    public void reset() {
+        for (final RemoteDevice device : snapshot.devices)
+            if (device.isRemoteCommand())
+                device.getOutputs().reset();
+    }
+
+    // wait until an output or a command must be sent to any node, or timeout ms
+    public void awaitPending(final long timeout) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout;
+        synchronized (lock) {
+            while (true) {
+                for (final RemoteDevice device : snapshot.devices)
+                    if (device.hasPending())
+                        return;
+                final long delay = end - System.currentTimeMillis();
+                if (delay <= 0)
+                    return;
+                lock.wait(delay);
+            }
+        }
+    }
+}
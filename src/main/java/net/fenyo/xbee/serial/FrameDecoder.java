@@ -0,0 +1,180 @@
+package net.fenyo.xbee.serial;
+
+import java.util.*;
+import net.fenyo.xbee.metrics.*;
+import org.apache.commons.logging.*;
+
+// streaming decoder for API mode 2 (escaped control characters)
+// each chunk read on the serial link is scanned only once: bytes are unescaped
+// into a reusable buffer, the checksum is computed on the fly and a frame is
+// emitted as soon as its checksum byte has been received
+public class FrameDecoder {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    public interface Listener {
+        void frameDecoded(final XBeeFrame frame);
+
+        // bytes received outside of any API frame (AT command mode)
+        void outsideFrame(final byte[] bytes, final int offset, final int length);
+    }
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_LENGTH_MSB = 1;
+    private static final int STATE_LENGTH_LSB = 2;
+    private static final int STATE_DATA = 3;
+    private static final int STATE_CHECKSUM = 4;
+
+    private final Listener listener;
+
+    private int state = STATE_IDLE;
+    private boolean escape = false;
+    private int length; // frame data length (api id included)
+    private int position;
+    private int cksum;
+    private byte[] frame_data = new byte[256]; // unescaped frame data
+    private long frame_start_time = 0;
+
+    public FrameDecoder(final Listener listener) {
+        this.listener = listener;
+    }
+
+    public static boolean hasFrameId(final int api_id) {
+        switch (api_id) {
+        case 0x00:
+        case 0x01:
+        case 0x08:
+        case 0x09:
+        case 0x17:
+        case 0x88:
+        case 0x89:
+        case 0x97:
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
+    private void dropPartialFrame(final String reason) {
+        Metrics.PARTIAL_FRAMES.increment();
+        log.error("removing partial frame: (" + reason + " - frame start time: " + frame_start_time + ")");
+        for (int i = 0; i < position; i++)
+            log.error("byte: " + Integer.toHexString(frame_data[i] & 0xff) + "h" + " " + (frame_data[i] & 0xff) + "d ('"
+                    + (char) frame_data[i] + "')");
+        state = STATE_IDLE;
+        escape = false;
+        frame_start_time = 0;
+    }
+
+    private void frameComplete() {
+        state = STATE_IDLE;
+        frame_start_time = 0;
+
+        if ((cksum & 0xff) != 0xff) {
+            Metrics.CHECKSUM_FAILURES.increment();
+            log.error("invalid checksum");
+            return;
+        }
+
+        if (length < 1) {
+            log.error("short frame");
+            return;
+        }
+        final int api_id = 0xff & frame_data[0];
+        Metrics.FRAMES_RECEIVED.increment(api_id);
+
+        int frame_id = -1;
+        if (hasFrameId(api_id)) {
+            if (length < 2) {
+                log.error("short frame");
+                return;
+            }
+            frame_id = 0xff & frame_data[1];
+        }
+
+        final XBeeFrame frame = new XBeeFrame(api_id, frame_id,
+                Arrays.copyOfRange(frame_data, frame_id == -1 ? 1 : 2, length));
+        log.debug("frame id: " + Integer.toHexString(api_id));
+        listener.frameDecoded(frame);
+    }
+
+    public void decode(final byte[] bytes, final int offset, final int count) {
+        if (state != STATE_IDLE && System.currentTimeMillis() - frame_start_time > 5000)
+            // partial frame delim received more than 5 sec ago
+            dropPartialFrame("timeout: " + (System.currentTimeMillis() - frame_start_time));
+
+        final int end = offset + count;
+        int outside_start = offset;
+        for (int i = offset; i < end; i++) {
+            int b = bytes[i] & 0xff;
+
+            // remove XON-XOFF
+            if (b == 0x11 || b == 0x13) {
+                Metrics.XON_XOFF.increment();
+                log.error((b == 0x11 ? "XON" : "XOFF") + " at position " + (i - offset));
+                if (state == STATE_IDLE && i > outside_start)
+                    listener.outsideFrame(bytes, outside_start, i - outside_start);
+                outside_start = i + 1;
+                continue;
+            }
+
+            if (b == 0x7e) {
+                // in API mode 2, a non escaped delimiter always starts a new frame
+                if (state == STATE_IDLE) {
+                    if (i > outside_start)
+                        listener.outsideFrame(bytes, outside_start, i - outside_start);
+                } else
+                    dropPartialFrame("new start delimiter");
+                state = STATE_LENGTH_MSB;
+                escape = false;
+                position = 0;
+                frame_start_time = System.currentTimeMillis();
+                continue;
+            }
+
+            if (state == STATE_IDLE)
+                continue;
+
+            if (b == 0x7d) {
+                escape = true;
+                continue;
+            }
+            if (escape) {
+                b ^= 0x20;
+                escape = false;
+            }
+
+            switch (state) {
+            case STATE_LENGTH_MSB:
+                length = b << 8;
+                state = STATE_LENGTH_LSB;
+                break;
+
+            case STATE_LENGTH_LSB:
+                length += b;
+                if (frame_data.length < length)
+                    frame_data = new byte[length];
+                position = 0;
+                cksum = 0;
+                state = length == 0 ? STATE_CHECKSUM : STATE_DATA;
+                break;
+
+            case STATE_DATA:
+                frame_data[position++] = (byte) b;
+                cksum += b;
+                if (position == length)
+                    state = STATE_CHECKSUM;
+                break;
+
+            case STATE_CHECKSUM:
+                cksum += b;
+                frameComplete();
+                outside_start = i + 1;
+                break;
+            }
+        }
+
+        if (state == STATE_IDLE && end > outside_start)
+            listener.outsideFrame(bytes, outside_start, end - outside_start);
+    }
+}
@@ -0,0 +1,5 @@
+package net.fenyo.xbee.serial;
+
+public interface FrameListener {
+    void frameReceived(final XBeeFrame frame);
+}
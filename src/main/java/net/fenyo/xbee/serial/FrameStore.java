@@ -0,0 +1,106 @@
+package net.fenyo.xbee.serial;
+
+import java.util.*;
+import net.fenyo.xbee.metrics.*;
+import org.apache.commons.logging.*;
+
+// decoded frames that nobody was waiting for, kept for a later lookup
+// each API id has its own bounded queue: when it is full, the oldest frame is
+// dropped, and frames older than ttl ms are evicted, so that memory and lookup
+// cost stay flat whatever the traffic from unknown nodes
+public class FrameStore {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private static class Entry {
+        final XBeeFrame frame;
+        final long time;
+
+        Entry(final XBeeFrame frame, final long time) {
+            this.frame = frame;
+            this.time = time;
+        }
+    }
+
+    private final int capacity; // per API id
+    private final long ttl;
+
+    // indexed by API id, created on first use
+    private final List<ArrayDeque<Entry>> queues = new ArrayList<ArrayDeque<Entry>>(
+            Collections.<ArrayDeque<Entry>> nCopies(256, null));
+
+    public FrameStore(final int capacity, final long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+
+    // must be called within this synchronization
+    private void expire(final ArrayDeque<Entry> queue, final long now) {
+        while (!queue.isEmpty() && now - queue.peekFirst().time > ttl)
+            Metrics.FRAMES_EXPIRED.increment(queue.pollFirst().frame.getApiId());
+    }
+
+    public synchronized void add(final XBeeFrame frame) {
+        final long now = System.currentTimeMillis();
+        ArrayDeque<Entry> queue = queues.get(frame.getApiId());
+        if (queue == null) {
+            queue = new ArrayDeque<Entry>(capacity);
+            queues.set(frame.getApiId(), queue);
+        }
+        expire(queue, now);
+        if (queue.size() >= capacity) {
+            queue.pollFirst();
+            Metrics.FRAMES_OVERFLOW.increment(frame.getApiId());
+            log.debug("too many unclaimed frames with api id " + Integer.toHexString(frame.getApiId())
+                    + ", dropping the oldest one");
+        }
+        queue.addLast(new Entry(frame, now));
+        notifyAll();
+    }
+
+    // must be called within this synchronization
+    private XBeeFrame take(final ArrayDeque<Entry> queue, final long address, final long now) {
+        if (queue == null)
+            return null;
+        expire(queue, now);
+        for (final Iterator<Entry> iterator = queue.iterator(); iterator.hasNext();) {
+            final XBeeFrame frame = iterator.next().frame;
+            if (frame.hasAddress() && frame.getSourceAddress() == address) {
+                iterator.remove();
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    // returns the oldest frame from address, with api_id (-1: any API id), or
+    // null after timeout ms
+    public synchronized XBeeFrame take(final int api_id, final long address, final long timeout)
+            throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout;
+        while (true) {
+            final long now = System.currentTimeMillis();
+            if (api_id >= 0) {
+                final XBeeFrame frame = take(queues.get(api_id), address, now);
+                if (frame != null)
+                    return frame;
+            } else
+                for (final ArrayDeque<Entry> queue : queues) {
+                    final XBeeFrame frame = take(queue, address, now);
+                    if (frame != null)
+                        return frame;
+                }
+            final long delay = end - now;
+            if (delay <= 0)
+                return null;
+            wait(delay);
+        }
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (final ArrayDeque<Entry> queue : queues)
+            if (queue != null)
+                size += queue.size();
+        return size;
+    }
+}
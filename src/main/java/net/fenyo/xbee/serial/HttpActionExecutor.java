@@ -0,0 +1,149 @@
+package net.fenyo.xbee.serial;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.commons.logging.*;
+import org.springframework.scheduling.concurrent.*;
+
+// runs the HTTP requests triggered by the remote command (home automation
+// CGIs) on a bounded pool, so that a slow endpoint never delays radio frames
+// at most max_per_target requests are in flight to the same host, the others
+// wait in a small per host queue where the oldest ones are dropped first: the
+// latest request (a button press, the last analog value) always wins
+public class HttpActionExecutor {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<String, Target>();
+    private final int max_per_target;
+    private final int queue_size;
+    private final int connect_timeout;
+    private final int read_timeout;
+
+    private static class Target {
+        int in_flight = 0;
+        final Deque<URL> pending = new ArrayDeque<URL>();
+    }
+
+    public HttpActionExecutor(final int threads, final int max_per_target, final int queue_size,
+            final int connect_timeout, final int read_timeout) {
+        // the per host queues bound the number of tasks, the pool queue does
+        // not need to
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new CustomizableThreadFactory("HttpActionExecutor-"));
+        executor.allowCoreThreadTimeOut(true);
+        this.max_per_target = max_per_target;
+        this.queue_size = queue_size;
+        this.connect_timeout = connect_timeout;
+        this.read_timeout = read_timeout;
+    }
+
+    private Target getTarget(final URL url) {
+        final String key = url.getHost() + ":" + url.getPort();
+        Target target = targets.get(key);
+        if (target == null) {
+            final Target new_target = new Target();
+            target = targets.putIfAbsent(key, new_target);
+            if (target == null)
+                target = new_target;
+        }
+        return target;
+    }
+
+    // threads: any
+    public void submit(final String spec) {
+        final URL url;
+        try {
+            url = new URL(spec);
+        } catch (final MalformedURLException ex) {
+            log.error(ex);
+            return;
+        }
+
+        final Target target = getTarget(url);
+        synchronized (target) {
+            if (target.in_flight >= max_per_target) {
+                if (target.pending.size() >= queue_size)
+                    log.warn("too many pending requests, dropping " + target.pending.removeFirst());
+                target.pending.addLast(url);
+                return;
+            }
+            target.in_flight++;
+        }
+        execute(target, url);
+    }
+
+    private void execute(final Target target, final URL url) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        get(url);
+                    } finally {
+                        next(target);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            log.warn("executor shut down, dropping " + url);
+        }
+    }
+
+    private void next(final Target target) {
+        final URL url;
+        synchronized (target) {
+            url = target.pending.pollFirst();
+            if (url == null) {
+                target.in_flight--;
+                return;
+            }
+        }
+        execute(target, url);
+    }
+
+    // the response is fully read and the stream closed, so that the connection
+    // can be kept alive and reused for the next request to the same host
+    private void get(final URL url) {
+        final long start = System.currentTimeMillis();
+        try {
+            final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(connect_timeout);
+            conn.setReadTimeout(read_timeout);
+            conn.setUseCaches(false);
+            final int code = conn.getResponseCode();
+            final InputStream stream = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+            if (stream != null) {
+                final byte[] buffer = new byte[1024];
+                try {
+                    while (stream.read(buffer) != -1)
+                        ;
+                } finally {
+                    stream.close();
+                }
+            }
+            if (code >= 400)
+                log.warn("HTTP " + code + " from " + url);
+            else
+                log.debug("HTTP " + code + " from " + url + " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (final IOException ex) {
+            log.warn("request failed: " + url + ": " + ex);
+        }
+    }
+
+    // true once every request has been sent or dropped
+    boolean isIdle() {
+        for (final Target target : targets.values())
+            synchronized (target) {
+                if (target.in_flight != 0)
+                    return false;
+            }
+        return true;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
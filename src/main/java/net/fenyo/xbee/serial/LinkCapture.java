@@ -0,0 +1,129 @@
+package net.fenyo.xbee.serial;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import org.apache.commons.logging.*;
+
+// raw capture of the bytes exchanged on the serial links, for later analysis
+// or replay (see CaptureReplay)
+// records are appended to a memory-mapped file: when it is full, it is renamed
+// with a .1 suffix and a new one is started, so that the last size to 2 * size
+// bytes of traffic are always available
+// a capture left by a previous run is renamed the same way at startup
+// file format (big endian):
+// header: magic (int), version (int), wall clock (long, ms), nanoTime (long)
+// record: nanoTime (long), direction (byte), length (int), bytes
+// the unused end of the file is zero-filled (direction 0)
+// an empty file name disables the capture
+public class LinkCapture {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    public static final int MAGIC = 0x58424350; // XBCP
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 24;
+    public static final int RECORD_HEADER_SIZE = 13;
+
+    public static final byte RECEIVED = 1;
+    public static final byte SENT = 2;
+    public static final byte CONNECTED = 3; // new link, length 0
+
+    private final File file;
+    private final int size;
+
+    // threads: SerialEventLoop
+    private MappedByteBuffer buffer = null;
+
+    public LinkCapture(final String file_name, final int size) throws IOException {
+        file = (file_name == null || file_name.trim().length() == 0) ? null : new File(file_name.trim());
+        if (size < HEADER_SIZE + RECORD_HEADER_SIZE + 1024)
+            throw new IllegalArgumentException("capture size too small: " + size);
+        this.size = size;
+        if (file != null) {
+            if (file.length() > 0)
+                keepPrevious();
+            open();
+        }
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    private void open() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // truncate first, so that the new file is zero-filled
+            raf.setLength(0);
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putLong(System.nanoTime());
+    }
+
+    // the current file becomes the previous part (.1 suffix)
+    private void keepPrevious() {
+        final File old = new File(file.getPath() + ".1");
+        if (old.exists() && !old.delete())
+            log.warn("can not delete " + old);
+        if (!file.renameTo(old))
+            log.warn("can not rename " + file);
+    }
+
+    private void rotate() {
+        buffer.force();
+        buffer = null;
+        keepPrevious();
+        try {
+            open();
+        } catch (final IOException ex) {
+            log.error("capture disabled: " + ex);
+            buffer = null;
+        }
+    }
+
+    // must not be called after a write error (buffer == null)
+    private boolean reserve(final int length) {
+        if (buffer.remaining() >= RECORD_HEADER_SIZE + length)
+            return true;
+        if (HEADER_SIZE + RECORD_HEADER_SIZE + length > size) {
+            log.warn("chunk too large to be captured: " + length + " bytes");
+            return false;
+        }
+        rotate();
+        return buffer != null;
+    }
+
+    // threads: SerialEventLoop
+    public void record(final byte direction, final byte[] bytes, final int offset, final int length) {
+        if (buffer == null || !reserve(length))
+            return;
+        buffer.putLong(System.nanoTime()).put(direction).putInt(length).put(bytes, offset, length);
+    }
+
+    // threads: SerialEventLoop
+    // records the bytes between from and to, without changing the position of
+    // the source buffer
+    public void record(final byte direction, final ByteBuffer bytes, final int from, final int to) {
+        if (buffer == null || !reserve(to - from))
+            return;
+        final ByteBuffer chunk = bytes.duplicate();
+        chunk.limit(to).position(from);
+        buffer.putLong(System.nanoTime()).put(direction).putInt(to - from).put(chunk);
+    }
+
+    // threads: SerialEventLoop
+    public void recordConnected() {
+        record(CONNECTED, new byte[0], 0, 0);
+    }
+
+    // threads: any, once the event loop has stopped
+    public void close() {
+        if (buffer != null)
+            buffer.force();
+        buffer = null;
+    }
+}
@@ -0,0 +1,21 @@
+package net.fenyo.xbee.serial;
+
+import org.apache.commons.logging.*;
+
+public abstract class LinkHandler {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private final SerialLink link;
+
+    protected LinkHandler(final SerialLink link) {
+        this.link = link;
+    }
+
+    protected SerialLink getLink() {
+        return link;
+    }
+
+    public boolean getError() {
+        return link.getError();
+    }
+}
@@ -0,0 +1,59 @@
+package net.fenyo.xbee.serial;
+
+import java.io.*;
+import java.util.*;
+import org.apache.commons.logging.*;
+
+// last verified configuration of each module, keyed by serial number (SH+SL),
+// persisted in a properties file so that a reconnection to a known module only
+// needs to compare fingerprints
+// an empty file name disables the cache: every module is fully verified
+public class ModuleConfigCache {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private final File file;
+    private final Properties fingerprints = new Properties();
+
+    public ModuleConfigCache(final String file_name) {
+        file = (file_name == null || file_name.trim().length() == 0) ? null : new File(file_name.trim());
+        if (file == null || !file.exists())
+            return;
+        try {
+            final InputStream input = new FileInputStream(file);
+            try {
+                fingerprints.load(input);
+            } finally {
+                input.close();
+            }
+        } catch (final IOException ex) {
+            log.warn("can not read " + file + ": " + ex);
+            fingerprints.clear();
+        }
+    }
+
+    public synchronized boolean matches(final String serial, final String fingerprint) {
+        return fingerprint.equals(fingerprints.getProperty(serial));
+    }
+
+    public synchronized void store(final String serial, final String fingerprint) {
+        if (file == null || fingerprint.equals(fingerprints.getProperty(serial)))
+            return;
+        fingerprints.setProperty(serial, fingerprint);
+
+        // written to a temporary file first, so that a crash never leaves a
+        // truncated file
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            final OutputStream output = new FileOutputStream(tmp);
+            try {
+                fingerprints.store(output, "verified XBee module configurations");
+            } finally {
+                output.close();
+            }
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+                log.warn("can not write " + file);
+        } catch (final IOException ex) {
+            log.warn("can not write " + file + ": " + ex);
+        }
+    }
+}
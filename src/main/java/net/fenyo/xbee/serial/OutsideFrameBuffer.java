@@ -0,0 +1,136 @@
+package net.fenyo.xbee.serial;
+
+import java.nio.charset.*;
+
+// bytes received outside of API frames (AT command mode answers)
+// they are stored in a growable ring, and the terminator expected by the
+// waiting AT command is searched incrementally (KMP): each byte is scanned
+// once, whatever the number of chunks needed to receive a long ATND dump, and
+// the waiter is only woken up when its terminator has been received
+public class OutsideFrameBuffer {
+    private static final Charset ISO8859_1 = Charset.forName("ISO8859-1");
+
+    // when nobody is waiting, older bytes are dropped beyond this size
+    private static final int MAX_IDLE_SIZE = 65536;
+
+    private byte[] ring = new byte[1024];
+    private int head = 0; // index of the first byte in the ring
+    private int count = 0;
+
+    // terminator searched for the current waiter, null if none
+    private byte[] terminator = null;
+    private int[] failure;
+    private int scanned; // number of bytes already scanned, from head
+    private int matched; // terminator bytes matched at the end of the scanned bytes
+    private int match_end = -1; // offset from head, after the terminator
+
+    private void grow(final int needed) {
+        int size = ring.length;
+        while (size < needed)
+            size <<= 1;
+        final byte[] new_ring = new byte[size];
+        copy(0, count, new_ring);
+        ring = new_ring;
+        head = 0;
+    }
+
+    // copy length bytes starting at offset from head
+    private void copy(final int offset, final int length, final byte[] dst) {
+        final int start = (head + offset) % ring.length;
+        final int first = Math.min(length, ring.length - start);
+        System.arraycopy(ring, start, dst, 0, first);
+        System.arraycopy(ring, 0, dst, first, length - first);
+    }
+
+    private String string(final int length) {
+        final byte[] bytes = new byte[length];
+        copy(0, length, bytes);
+        return new String(bytes, ISO8859_1);
+    }
+
+    private void consume(final int length) {
+        head = (head + length) % ring.length;
+        count -= length;
+    }
+
+    private void scan() {
+        while (match_end == -1 && scanned < count) {
+            final byte b = ring[(head + scanned++) % ring.length];
+            while (matched > 0 && terminator[matched] != b)
+                matched = failure[matched - 1];
+            if (terminator[matched] == b && ++matched == terminator.length)
+                match_end = scanned;
+        }
+    }
+
+    // threads: SerialEventLoop
+    public synchronized void append(final byte[] bytes, final int offset, final int length) {
+        if (count + length > ring.length) {
+            if (terminator == null && count + length > MAX_IDLE_SIZE) {
+                // only keep the last bytes
+                final int drop = Math.min(count, count + length - MAX_IDLE_SIZE);
+                consume(drop);
+                if (length > MAX_IDLE_SIZE) {
+                    append(bytes, offset + length - MAX_IDLE_SIZE, MAX_IDLE_SIZE);
+                    return;
+                }
+            }
+            if (count + length > ring.length)
+                grow(count + length);
+        }
+
+        final int tail = (head + count) % ring.length;
+        final int first = Math.min(length, ring.length - tail);
+        System.arraycopy(bytes, offset, ring, tail, first);
+        System.arraycopy(bytes, offset + first, ring, 0, length - first);
+        count += length;
+
+        if (terminator != null) {
+            scan();
+            if (match_end != -1)
+                notifyAll();
+        }
+    }
+
+    // returns and removes every byte received
+    public synchronized String clear() {
+        final String retval = string(count);
+        consume(count);
+        return retval;
+    }
+
+    // returns the data received before data, and removes it with data, or
+    // returns null after timeout ms
+    // never call await from 2 separate threads at the same time
+    public synchronized String await(final String data, final long timeout) throws InterruptedException {
+        terminator = data.getBytes(ISO8859_1);
+        failure = new int[terminator.length];
+        for (int i = 1, k = 0; i < terminator.length; i++) {
+            while (k > 0 && terminator[i] != terminator[k])
+                k = failure[k - 1];
+            if (terminator[i] == terminator[k])
+                k++;
+            failure[i] = k;
+        }
+        scanned = 0;
+        matched = 0;
+        match_end = -1;
+
+        try {
+            scan();
+            final long end = System.currentTimeMillis() + timeout;
+            while (match_end == -1) {
+                final long delay = end - System.currentTimeMillis();
+                if (delay <= 0)
+                    return null;
+                wait(delay);
+            }
+            final String retval = string(match_end - terminator.length);
+            consume(match_end);
+            return retval;
+        } finally {
+            terminator = null;
+            failure = null;
+        }
+    }
+}
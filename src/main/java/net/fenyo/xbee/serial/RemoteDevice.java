@@ -0,0 +1,185 @@
+package net.fenyo.xbee.serial;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.apache.commons.logging.*;
+import org.springframework.util.concurrent.*;
+
+// a remote node, identified by its 64 bit address
+// its state is protected by the lock of the device registry
+public class RemoteDevice {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    // max number of remote AT commands waiting to be sent to this node
+    private static final int MAX_COMMANDS = 32;
+
+    private final long address;
+    private final Object lock;
+
+    // null if this node is not a remote command (no buttons, LEDs or buzzer)
+    private final RemoteOutputs outputs;
+
+    // remote AT commands are sent one at a time, in order
+    private final Queue<Command> commands = new ArrayDeque<Command>();
+    private boolean command_in_flight = false;
+
+    private volatile XBeeFrame last_sample = null;
+    private volatile long last_sample_time = 0;
+
+    // link stats
+    private final AtomicLong frames_sent = new AtomicLong();
+    private final AtomicLong frames_failed = new AtomicLong();
+    private final AtomicLong samples_received = new AtomicLong();
+
+    // threads: SerialPortHandler-dispatcher
+    final boolean button[] = { true, true, true, true };
+    final boolean last_button[] = { true, true, true, true };
+    final int analog[] = { -1, -1 };
+    final int last_analog[] = { -1, -1 };
+    volatile long start_buzzer = System.currentTimeMillis();
+
+    public static class Command {
+        final String command;
+        final boolean ack;
+        final SettableListenableFuture<byte[]> result = new SettableListenableFuture<byte[]>();
+
+        Command(final String command, final boolean ack) {
+            this.command = command;
+            this.ack = ack;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public boolean getAck() {
+            return ack;
+        }
+    }
+
+    RemoteDevice(final long address, final Object lock, final RemoteOutputs outputs) {
+        this.address = address;
+        this.lock = lock;
+        this.outputs = outputs;
+    }
+
+    public long getAddress() {
+        return address;
+    }
+
+    public long getAddressHigh() {
+        return address >>> 32;
+    }
+
+    public long getAddressLow() {
+        return address & 0xffffffffL;
+    }
+
+    public boolean isRemoteCommand() {
+        return outputs != null;
+    }
+
+    public RemoteOutputs getOutputs() {
+        return outputs;
+    }
+
+    // threads: any
+    // the future is completed with the response value, or null on failure (a
+    // command without ack is completed with null once sent), and fails if the
+    // command has been dropped or could not be sent
+    public ListenableFuture<byte[]> submit(final String command, final boolean ack) {
+        final Command entry = new Command(command, ack);
+        synchronized (lock) {
+            if (commands.size() >= MAX_COMMANDS) {
+                log.warn("too many pending commands for " + this);
+                entry.result.setException(new IllegalStateException("too many pending commands for " + this));
+                return entry.result;
+            }
+            commands.add(entry);
+            lock.notifyAll();
+        }
+        return entry.result;
+    }
+
+    // returns the next command to send, or null if there is none or if the
+    // previous one is still in flight
+    public Command takeCommand() {
+        synchronized (lock) {
+            if (command_in_flight || commands.isEmpty())
+                return null;
+            command_in_flight = true;
+            return commands.poll();
+        }
+    }
+
+    private void release() {
+        synchronized (lock) {
+            command_in_flight = false;
+            lock.notifyAll();
+        }
+    }
+
+    public void commandDone(final Command command, final byte[] value) {
+        release();
+        command.result.set(value);
+    }
+
+    // the command has not been sent
+    public void commandFailed(final Command command, final Throwable ex) {
+        release();
+        command.result.setException(ex);
+    }
+
+    // must be called within lock synchronization
+    boolean hasPending() {
+        return (outputs != null && outputs.hasPending()) || (!command_in_flight && !commands.isEmpty());
+    }
+
+    // wake up the waiters of the commands that have not been sent yet
+    public void clearCommands() {
+        final List<Command> dropped;
+        synchronized (lock) {
+            dropped = new ArrayList<Command>(commands);
+            commands.clear();
+        }
+        for (final Command command : dropped)
+            command.result.setException(new IllegalStateException("command dropped: " + command.getCommand()));
+    }
+
+    public void sampleReceived(final XBeeFrame frame) {
+        last_sample = frame;
+        last_sample_time = System.currentTimeMillis();
+        samples_received.incrementAndGet();
+    }
+
+    public XBeeFrame getLastSample() {
+        return last_sample;
+    }
+
+    public long getLastSampleTime() {
+        return last_sample_time;
+    }
+
+    public void frameSent(final boolean success) {
+        frames_sent.incrementAndGet();
+        if (!success)
+            frames_failed.incrementAndGet();
+    }
+
+    public long getFramesSent() {
+        return frames_sent.get();
+    }
+
+    public long getFramesFailed() {
+        return frames_failed.get();
+    }
+
+    public long getSamplesReceived() {
+        return samples_received.get();
+    }
+
+    @Override
+    public String toString() {
+        return Tools.addressToString(address);
+    }
+}
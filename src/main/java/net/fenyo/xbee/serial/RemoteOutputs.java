@@ -0,0 +1,110 @@
+package net.fenyo.xbee.serial;
+
+import java.io.*;
+
+// LEDs and buzzer of a remote command: desired state (set by the web
+// controller and the buttons) versus state applied on the remote node
+// an output is sent only when its desired value differs from the applied one,
+// or when it has not been confirmed for reassert_period ms
+// the state is protected by the lock of the device registry, so that a single
+// thread can wait for pending outputs on every remote node
+public class RemoteOutputs {
+    public static final int BUZZER = 0;
+    public static final int LED0 = 1;
+    public static final int LED1 = 2;
+    public static final int LED2 = 3;
+    public static final int LED3 = 4;
+    public static final int NB_OUTPUTS = 5;
+
+    // pin driving each output
+    private static final String[] COMMANDS = { "D6", "D4", "M0", "M1", "D5" };
+
+    private final boolean[] desired = new boolean[NB_OUTPUTS];
+    private final int[] applied = { -1, -1, -1, -1, -1 }; // -1: unknown, 0: off, 1: on
+    private final long[] applied_time = new long[NB_OUTPUTS];
+    private final boolean[] in_flight = new boolean[NB_OUTPUTS];
+    private final long reassert_period;
+    private final Object lock;
+
+    public RemoteOutputs(final Object lock, final long reassert_period) {
+        this.lock = lock;
+        this.reassert_period = reassert_period;
+    }
+
+    // remote AT command that sets an output
+    public static String getCommand(final int output, final boolean on) throws UnsupportedEncodingException {
+        final byte[] value;
+        switch (output) {
+        case LED1:
+        case LED2:
+            // PWM
+            value = new byte[] { (byte) (on ? 3 : 0), (byte) (on ? 0xff : 0) };
+            break;
+
+        default:
+            // digital output high or low
+            value = new byte[] { (byte) (on ? 5 : 4) };
+            break;
+        }
+        return COMMANDS[output] + new String(value, "ISO8859-1");
+    }
+
+    public boolean get(final int output) {
+        synchronized (lock) {
+            return desired[output];
+        }
+    }
+
+    // rapid toggles are coalesced: only the latest value is sent
+    public void set(final int output, final boolean on) {
+        synchronized (lock) {
+            desired[output] = on;
+            lock.notifyAll();
+        }
+    }
+
+    // the state of the remote node is unknown, every output must be sent again
+    public void reset() {
+        synchronized (lock) {
+            for (int output = 0; output < NB_OUTPUTS; output++)
+                applied[output] = -1;
+            lock.notifyAll();
+        }
+    }
+
+    private boolean isPending(final int output) {
+        return !in_flight[output] && (applied[output] != (desired[output] ? 1 : 0)
+                || System.currentTimeMillis() - applied_time[output] >= reassert_period);
+    }
+
+    // must be called within lock synchronization
+    boolean hasPending() {
+        for (int output = 0; output < NB_OUTPUTS; output++)
+            if (isPending(output))
+                return true;
+        return false;
+    }
+
+    // returns the value to send for this output, or null if it is up to date or
+    // if a previous value is still in flight
+    public Boolean take(final int output) {
+        synchronized (lock) {
+            if (!isPending(output))
+                return null;
+            in_flight[output] = true;
+            return desired[output];
+        }
+    }
+
+    public void sent(final int output, final boolean on, final boolean success) {
+        synchronized (lock) {
+            in_flight[output] = false;
+            if (success) {
+                applied[output] = on ? 1 : 0;
+                applied_time[output] = System.currentTimeMillis();
+            } else
+                applied[output] = -1;
+            lock.notifyAll();
+        }
+    }
+}
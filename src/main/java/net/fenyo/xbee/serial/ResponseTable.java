@@ -0,0 +1,98 @@
+package net.fenyo.xbee.serial;
+
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.apache.commons.logging.*;
+import org.springframework.util.concurrent.*;
+
+// pending responses, indexed by frame id
+// a slot is armed before its request frame is written, so that the decoder can
+// complete it directly when the response arrives: only the requester is woken
+// up, and an unexpected or late response costs a single array lookup
+public class ResponseTable {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private final AtomicReferenceArray<SettableListenableFuture<XBeeFrame>> pending = new AtomicReferenceArray<SettableListenableFuture<XBeeFrame>>(
+            256);
+
+    // shared by every connection, completes the futures that time out
+    private final ScheduledExecutorService timer;
+
+    public ResponseTable(final ScheduledExecutorService timer) {
+        this.timer = timer;
+    }
+
+    // frame id 0 means that no response is expected, it must never be armed
+    // no timeout is started: see startTimeout()
+    public ListenableFuture<XBeeFrame> expect(final int frame_id) {
+        final SettableListenableFuture<XBeeFrame> future = new SettableListenableFuture<XBeeFrame>();
+        final SettableListenableFuture<XBeeFrame> previous = pending.getAndSet(frame_id, future);
+        if (previous != null) {
+            log.error("removed waiter with old id " + frame_id);
+            previous.set(null);
+        }
+        return future;
+    }
+
+    // the future is completed with a null frame after timeout ms
+    public ListenableFuture<XBeeFrame> expect(final int frame_id, final long timeout) {
+        final ListenableFuture<XBeeFrame> future = expect(frame_id);
+        startTimeout(frame_id, future, timeout);
+        return future;
+    }
+
+    // the future returned by expect(frame_id) is completed with a null frame
+    // after timeout ms, unless it has been completed meanwhile
+    public void startTimeout(final int frame_id, final ListenableFuture<XBeeFrame> response, final long timeout) {
+        final SettableListenableFuture<XBeeFrame> future = pending.get(frame_id);
+        if (future != response)
+            // already completed
+            return;
+
+        final ScheduledFuture<?> timeout_task = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.compareAndSet(frame_id, future, null))
+                    future.set(null);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        future.addCallback(new ListenableFutureCallback<XBeeFrame>() {
+            @Override
+            public void onSuccess(final XBeeFrame frame) {
+                timeout_task.cancel(false);
+            }
+
+            @Override
+            public void onFailure(final Throwable ex) {
+                timeout_task.cancel(false);
+            }
+        });
+    }
+
+    // true while a response with this id is awaited: the id must not be reused
+    public boolean isPending(final int frame_id) {
+        return pending.get(frame_id) != null;
+    }
+
+    // returns false if nobody is waiting for this frame
+    public boolean complete(final XBeeFrame frame) {
+        if (frame.getId() <= 0)
+            return false;
+        final SettableListenableFuture<XBeeFrame> future = pending.getAndSet(frame.getId(), null);
+        if (future == null)
+            return false;
+        future.set(frame);
+        return true;
+    }
+
+    // fail every waiter with a ClosedChannelException (the link is down), so
+    // that this is not mistaken for a timeout
+    public void cancelAll() {
+        for (int i = 0; i < pending.length(); i++) {
+            final SettableListenableFuture<XBeeFrame> future = pending.getAndSet(i, null);
+            if (future != null)
+                future.setException(new ClosedChannelException());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package net.fenyo.xbee.serial;
+
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import org.apache.commons.logging.*;
+import org.springframework.util.concurrent.*;
+
+// response timeouts and retries, per destination, derived from the measured
+// round trip times (RFC 6298): RTO = SRTT + max(G, 4 * RTTVAR), doubled after
+// each timeout, so that a healthy node fails fast, and a slow one is given the
+// time it needs
+// retries are throttled by a token bucket per destination (each failure takes
+// a token, each success gives half a token back, no retry below half of the
+// bucket), so that an unreachable node is not hammered, and are spaced by a
+// jittered exponential backoff
+// frames to a sleeping end device are held by the coordinator during 2.5 * SP:
+// its timeouts and backoffs are never shorter than that
+public class RetryPolicy {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    // destination of the local AT command frames
+    public static final long LOCAL = -1;
+
+    // same timeouts as before any measurement
+    private static final long LOCAL_INITIAL_RTO = 5000;
+    private static final long REMOTE_INITIAL_RTO = 15000;
+    private static final long LOCAL_MIN_RTO = 100;
+    private static final long REMOTE_MIN_RTO = 500;
+    private static final long LOCAL_MAX_RTO = 5000;
+    private static final long REMOTE_MAX_RTO = 15000;
+    private static final long GRANULARITY = 10;
+
+    private static final int MAX_ATTEMPTS = 10;
+    private static final double MAX_TOKENS = 10;
+    private static final double SUCCESS_TOKENS = 0.5;
+
+    private static final long MIN_BACKOFF = 20;
+    private static final long MAX_BACKOFF = 5000;
+
+    private static class Destination {
+        final long min_rto;
+        final long max_rto;
+        // ms, -1 until the first measurement
+        double srtt = -1;
+        double rttvar = 0;
+        long rto;
+        double tokens = MAX_TOKENS;
+        long sleep_period = 0; // ms, 0 if the node never sleeps
+
+        Destination(final long initial_rto, final long min_rto, final long max_rto) {
+            rto = initial_rto;
+            this.min_rto = min_rto;
+            this.max_rto = max_rto;
+        }
+
+        // time the coordinator may hold a frame for this node
+        long getHoldTime() {
+            return sleep_period * 5 / 2;
+        }
+    }
+
+    private final ConcurrentMap<Long, Destination> destinations = new ConcurrentHashMap<Long, Destination>();
+
+    private Destination getDestination(final long address) {
+        Destination destination = destinations.get(address);
+        if (destination == null) {
+            final Destination new_destination = address == LOCAL
+                    ? new Destination(LOCAL_INITIAL_RTO, LOCAL_MIN_RTO, LOCAL_MAX_RTO)
+                    : new Destination(REMOTE_INITIAL_RTO, REMOTE_MIN_RTO, REMOTE_MAX_RTO);
+            destination = destinations.putIfAbsent(address, new_destination);
+            if (destination == null)
+                destination = new_destination;
+        }
+        return destination;
+    }
+
+    public void setSleepPeriod(final long address, final long sleep_period) {
+        final Destination destination = getDestination(address);
+        synchronized (destination) {
+            destination.sleep_period = sleep_period;
+        }
+    }
+
+    // time to wait for the response to a frame sent to this destination
+    public long getTimeout(final long address) {
+        final Destination destination = getDestination(address);
+        synchronized (destination) {
+            return destination.rto + destination.getHoldTime();
+        }
+    }
+
+    // attempt: number of attempts already made
+    public boolean allowRetry(final long address, final int attempt) {
+        if (attempt >= MAX_ATTEMPTS)
+            return false;
+        final Destination destination = getDestination(address);
+        synchronized (destination) {
+            return destination.tokens > MAX_TOKENS / 2;
+        }
+    }
+
+    // delay before the next attempt, uniformly distributed between 0 and an
+    // exponentially growing bound (full jitter)
+    public long getBackoff(final long address, final int attempt) {
+        final Destination destination = getDestination(address);
+        final long base;
+        final long max;
+        synchronized (destination) {
+            base = Math.max(Math.max(MIN_BACKOFF, (long) destination.srtt), destination.sleep_period / 2);
+            max = MAX_BACKOFF + destination.getHoldTime();
+        }
+        final long bound = Math.min(max, base << Math.min(attempt, 16));
+        return (long) (ThreadLocalRandom.current().nextDouble() * bound);
+    }
+
+    private void sample(final long address, final long rtt) {
+        final Destination destination = getDestination(address);
+        synchronized (destination) {
+            if (destination.srtt < 0) {
+                destination.srtt = rtt;
+                destination.rttvar = rtt / 2.0;
+            } else {
+                destination.rttvar = 0.75 * destination.rttvar + 0.25 * Math.abs(destination.srtt - rtt);
+                destination.srtt = 0.875 * destination.srtt + 0.125 * rtt;
+            }
+            destination.rto = Math.min(destination.max_rto, Math.max(destination.min_rto,
+                    (long) (destination.srtt + Math.max(GRANULARITY, 4 * destination.rttvar))));
+        }
+    }
+
+    private void timeout(final long address) {
+        final Destination destination = getDestination(address);
+        final long rto;
+        synchronized (destination) {
+            rto = destination.rto = Math.min(destination.max_rto, 2 * destination.rto);
+        }
+        log.debug("response timeout: " + rto + " ms for " + Long.toHexString(address));
+    }
+
+    private void outcome(final long address, final boolean success) {
+        final Destination destination = getDestination(address);
+        synchronized (destination) {
+            destination.tokens = success ? Math.min(MAX_TOKENS, destination.tokens + SUCCESS_TOKENS)
+                    : Math.max(0, destination.tokens - 1);
+        }
+    }
+
+    // feed the policy with the response to a frame sent to this destination
+    // start: System.nanoTime() when the frame was sent
+    public void track(final long address, final ListenableFuture<XBeeFrame> response, final long start) {
+        response.addCallback(new ListenableFutureCallback<XBeeFrame>() {
+            @Override
+            public void onSuccess(final XBeeFrame frame) {
+                if (frame == null) {
+                    timeout(address);
+                    outcome(address, false);
+                    return;
+                }
+                final byte[] content = frame.getContent();
+                // a failed delivery is reported after the retries of the
+                // module itself: its delay is not a round trip
+                final boolean delivered;
+                switch (frame.getApiId()) {
+                case 0x89:
+                    // 1: no ACK, 2: CCA failure, 3: purged
+                    delivered = content.length == 1 && content[0] == 0;
+                    outcome(address, delivered);
+                    break;
+
+                case 0x97:
+                    // 4: no response
+                    delivered = content.length >= 8 + 2 + 3 && content[8 + 2 + 2] != 4;
+                    outcome(address, delivered);
+                    break;
+
+                default:
+                    // local AT command response
+                    delivered = true;
+                    break;
+                }
+                if (delivered)
+                    sample(address, (System.nanoTime() - start) / 1000000);
+            }
+
+            @Override
+            public void onFailure(final Throwable ex) {
+                // the link went down: nothing to learn about the destination
+                if (ex instanceof ClosedChannelException)
+                    return;
+                timeout(address);
+                outcome(address, false);
+            }
+        });
+    }
+}
@@ -0,0 +1,154 @@
+package net.fenyo.xbee.serial;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.commons.logging.*;
+
+// single thread driving every serial link: connections, reads and queued writes
+// are handled with non blocking channels on one selector
+public class SerialEventLoop implements Runnable {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private final Queue<SerialLink> registrations = new ConcurrentLinkedQueue<SerialLink>();
+    // replaced if the loop fails, links registered on it are then closed and
+    // reconnected by their owner
+    private volatile Selector selector;
+
+    private Thread thread = null;
+    private volatile boolean closed = false;
+
+    public SerialEventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    public void start() {
+        thread = new Thread(this, "SerialEventLoop");
+        thread.start();
+    }
+
+    // threads: any
+    public void register(final SerialLink link) {
+        registrations.add(link);
+        selector.wakeup();
+    }
+
+    // threads: any
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    public void close() throws InterruptedException {
+        closed = true;
+        selector.wakeup();
+        thread.join();
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                loop();
+            } catch (final IOException | RuntimeException ex) {
+                // never let one bad event take every serial link down for good
+                log.error("serial event loop failed, reopening the selector", ex);
+            } finally {
+                closeSelector();
+            }
+
+            while (!closed)
+                try {
+                    selector = Selector.open();
+                    break;
+                } catch (final IOException ex) {
+                    log.error(ex);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (final InterruptedException ex2) {
+                        log.warn(ex2);
+                        return;
+                    }
+                }
+        }
+    }
+
+    // the links of a failed or closed loop are flagged, so that their owner
+    // reconnects them
+    private void closeSelector() {
+        for (final SelectionKey key : selector.keys()) {
+            final SerialLink link = (SerialLink) key.attachment();
+            link.errorOccured();
+            link.closeChannel();
+        }
+        try {
+            selector.close();
+        } catch (final IOException ex) {
+            log.warn(ex);
+        }
+    }
+
+    // failures of a single link close this link only
+    private void failed(final SerialLink link, final Exception ex) {
+        log.warn(ex);
+        link.errorOccured();
+        link.closeChannel();
+    }
+
+    private void loop() throws IOException {
+        final Selector selector = this.selector;
+        while (!closed) {
+            SerialLink link;
+            while ((link = registrations.poll()) != null)
+                try {
+                    link.register(this, selector);
+                } catch (final IOException | RuntimeException ex) {
+                    failed(link, ex);
+                }
+
+            // flush queued data and find the next guard time to honour
+            long deadline = 0;
+            for (final SelectionKey key : selector.keys()) {
+                link = (SerialLink) key.attachment();
+                if (!key.isValid())
+                    continue;
+                if (link.getError()) {
+                    link.closeChannel();
+                    continue;
+                }
+                try {
+                    final long link_deadline = link.write();
+                    if (link_deadline != 0 && (deadline == 0 || link_deadline < deadline))
+                        deadline = link_deadline;
+                } catch (final IOException | RuntimeException ex) {
+                    failed(link, ex);
+                }
+            }
+
+            if (deadline == 0)
+                selector.select();
+            else {
+                final long delay = deadline - System.currentTimeMillis();
+                if (delay > 0)
+                    selector.select(delay);
+                else
+                    selector.selectNow();
+            }
+
+            final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                final SelectionKey key = it.next();
+                it.remove();
+                link = (SerialLink) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable())
+                        link.finishConnect();
+                    if (key.isValid() && key.isReadable())
+                        link.read();
+                } catch (final IOException | RuntimeException ex) {
+                    failed(link, ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package net.fenyo.xbee.serial;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import org.apache.commons.logging.*;
+
+// one TCP connection to the socat process that relays a coordinator serial port
+// the channel is only accessed by the SerialEventLoop thread, other threads
+// talk to the link through its reader and writer
+public class SerialLink {
+    protected final Log log = LogFactory.getLog(getClass());
+
+    private final InetSocketAddress address;
+    private final SerialReader reader;
+    private final SerialWriter writer;
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final ByteBuffer input = ByteBuffer.allocate(1024);
+    private final LinkCapture capture; // null if disabled
+
+    private volatile SerialEventLoop event_loop = null;
+    private volatile boolean error = false;
+
+    // threads: SerialEventLoop
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+
+    public SerialLink(final String host, final int port, final ScheduledExecutorService timer,
+            final LinkCapture capture) {
+        address = new InetSocketAddress(host, port);
+        this.capture = capture;
+        reader = new SerialReader(this, timer);
+        writer = new SerialWriter(this);
+    }
+
+    public SerialReader getReader() {
+        return reader;
+    }
+
+    public SerialWriter getWriter() {
+        return writer;
+    }
+
+    public boolean getError() {
+        return error;
+    }
+
+    LinkCapture getCapture() {
+        return capture;
+    }
+
+    protected void errorOccured() {
+        error = true;
+        // wake up the requesters still waiting for a response
+        reader.linkDown();
+        connected.countDown();
+    }
+
+    public boolean awaitConnected(final long timeout) throws InterruptedException {
+        return connected.await(timeout, TimeUnit.MILLISECONDS) && !error;
+    }
+
+    // threads: any
+    public void close() {
+        errorOccured();
+        // let the event loop close the channel
+        wakeup();
+    }
+
+    // threads: any
+    void wakeup() {
+        final SerialEventLoop event_loop = this.event_loop;
+        if (event_loop != null)
+            event_loop.wakeup();
+    }
+
+    // threads: SerialEventLoop
+    void register(final SerialEventLoop event_loop, final Selector selector) throws IOException {
+        this.event_loop = event_loop;
+        if (capture != null)
+            capture.recordConnected();
+        if (address.isUnresolved())
+            throw new UnknownHostException(address.getHostName());
+
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        // writes are already coalesced by SerialWriter, do not delay them
+        channel.socket().setTcpNoDelay(true);
+        if (channel.connect(address)) {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            connected.countDown();
+        } else
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+    }
+
+    // threads: SerialEventLoop
+    void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            log.debug("connected to " + address);
+            key.interestOps(SelectionKey.OP_READ);
+            connected.countDown();
+        }
+    }
+
+    // threads: SerialEventLoop
+    void read() throws IOException {
+        input.clear();
+        final int nbytes = channel.read(input);
+        if (nbytes == -1)
+            throw new EOFException("connection closed by " + address);
+        if (nbytes > 0) {
+            if (capture != null)
+                capture.record(LinkCapture.RECEIVED, input.array(), 0, nbytes);
+            reader.received(input.array(), 0, nbytes);
+        }
+    }
+
+    // threads: SerialEventLoop
+    // returns the time at which write() must be called again, 0 if the event
+    // loop can wait for new data or for the channel to become writable
+    long write() throws IOException {
+        if (key == null || (key.interestOps() & SelectionKey.OP_CONNECT) != 0)
+            return 0;
+        final long deadline = writer.write(channel);
+        key.interestOps(writer.hasPendingOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+        return deadline;
+    }
+
+    // threads: SerialEventLoop
+    void closeChannel() {
+        if (key != null)
+            key.cancel();
+        if (channel != null)
+            try {
+                channel.close();
+            } catch (final IOException ex) {
+                log.warn(ex);
+            }
+        key = null;
+        channel = null;
+    }
+
+    @Override
+    public String toString() {
+        return address.toString();
+    }
+}
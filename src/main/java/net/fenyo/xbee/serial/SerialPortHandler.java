@@ -2,12 +2,18 @@ package net.fenyo.xbee.serial;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+import net.fenyo.xbee.metrics.*;
 import org.apache.commons.lang3.*;
 import org.apache.commons.logging.*;
 import org.springframework.beans.factory.*;
+import org.springframework.scheduling.annotation.*;
+import org.springframework.scheduling.concurrent.*;
 import org.springframework.stereotype.*;
+import org.springframework.util.concurrent.*;
 
 // CT, GT et CC doivent avoir les valeurs par défaut
 
@@ -20,22 +26,93 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
 
     private Thread thread = null;
 
+    // shared timer for response timeouts and paced frames
+    private ScheduledExecutorService timer = null;
+
+    private final AirtimeScheduler airtime_scheduler = new AirtimeScheduler();
+
+    // paced frames that become due while the module is in AT command mode are
+    // held here and sent when it leaves it: the timer thread never waits for
+    // at_mode_lock
+    private final Object paced_lock = new Object();
+    private boolean at_mode = false; // synchronized by paced_lock
+    private final List<PacedFrame> deferred_frames = new ArrayList<PacedFrame>(); // synchronized by paced_lock
+
+    // a remote frame and its response (null if none is expected)
+    // the response timeout and the round trip start when the frame is handed
+    // to the writer, so that a frame held during an AT command mode session
+    // can not time out before it is sent, and its wait is not counted in the
+    // round trip time
+    private class PacedFrame {
+        final SerialWriter writer;
+        final SerialReader reader;
+        final XBeeFrame frame;
+        final long address;
+        final ListenableFuture<XBeeFrame> response;
+        // metrics of the round trip, null if not measured
+        final LatencyHistogram rtt;
+        final StripedCounter timeouts;
+
+        PacedFrame(final SerialWriter writer, final SerialReader reader, final XBeeFrame frame, final long address,
+                final ListenableFuture<XBeeFrame> response, final LatencyHistogram rtt,
+                final StripedCounter timeouts) {
+            this.writer = writer;
+            this.reader = reader;
+            this.frame = frame;
+            this.address = address;
+            this.response = response;
+            this.rtt = rtt;
+            this.timeouts = timeouts;
+        }
+
+        void send() throws IOException, InterruptedException {
+            if (response != null) {
+                final long start = System.nanoTime();
+                reader.startResponseTimeout(frame.getId(), response, retry_policy.getTimeout(address));
+                retry_policy.track(address, response, start);
+                if (rtt != null)
+                    measure(response, start, rtt, timeouts);
+            }
+            writer.sendFrame(frame);
+        }
+    }
+
+    private final RetryPolicy retry_policy = new RetryPolicy();
+
     private String serialServerHostName;
     private int serialServerPortNumber;
     private String remoteCommandAddress;
+    private String devices;
+    private String sleepingDevices;
+    private String configCacheFile;
+    private String captureFile;
+    private int captureSize = 16 * 1024 * 1024;
+
+    // verified configurations of the modules already seen
+    private ModuleConfigCache module_configs = null;
+
+    // raw traffic of the serial links, disabled if captureFile is empty
+    private LinkCapture capture = null;
 
+    private SerialEventLoop event_loop = null;
+    private SerialLink serial_link = null;
     private SerialReader serial_reader = null;
     private SerialWriter serial_writer = null;
 
-    private Socket socket = null;
-
     private int frame_id = 255; // synchronized by operation_lock
 
-    public boolean state_led0 = false;
-    public boolean state_led1 = false;
-    public boolean state_led2 = false;
-    public boolean state_led3 = false;
-    public boolean state_buzzer = false;
+    // ms between two refreshes of an output that has not changed
+    private long reassertPeriod = 60000;
+
+    // remote commands and other remote nodes
+    private DeviceRegistry device_registry = null;
+    private long default_remote_command;
+
+    // IO samples are handled by this thread, in the order they are received
+    private ExecutorService dispatcher = null;
+
+    // HTTP requests triggered by the buttons and the analog inputs
+    private HttpActionExecutor http_actions = null;
 
     public static String bytesArrayToString(final byte[] array) {
         if (array == null)
@@ -47,13 +124,16 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
     }
 
     // must be called within connection_lock synchronization
+    // ids whose response is still awaited are skipped, so that a live waiter
+    // is never evicted: returns 0 if all of them are in use
     private int getNewFrameId() {
-        if (frame_id == 255)
-            frame_id = 1;
-        else
-            frame_id++;
-        serial_reader.removeOldFramesWithId(frame_id);
-        return frame_id;
+        for (int i = 0; i < 255; i++) {
+            frame_id = frame_id == 255 ? 1 : frame_id + 1;
+            if (!serial_reader.isFrameIdPending(frame_id))
+                return frame_id;
+        }
+        log.error("no free frame id");
+        return 0;
     }
 
     public String getSerialServerHostName() {
@@ -80,27 +160,138 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
         this.remoteCommandAddress = remoteCommandAddress;
     }
 
+    public String getConfigCacheFile() {
+        return configCacheFile;
+    }
+
+    public void setConfigCacheFile(String configCacheFile) {
+        this.configCacheFile = configCacheFile;
+    }
+
+    public String getCaptureFile() {
+        return captureFile;
+    }
+
+    public void setCaptureFile(String captureFile) {
+        this.captureFile = captureFile;
+    }
+
+    public int getCaptureSize() {
+        return captureSize;
+    }
+
+    public void setCaptureSize(int captureSize) {
+        this.captureSize = captureSize;
+    }
+
+    public String getDevices() {
+        return devices;
+    }
+
+    public void setDevices(String devices) {
+        this.devices = devices;
+    }
+
+    public String getSleepingDevices() {
+        return sleepingDevices;
+    }
+
+    public void setSleepingDevices(String sleepingDevices) {
+        this.sleepingDevices = sleepingDevices;
+    }
+
+    public long getReassertPeriod() {
+        return reassertPeriod;
+    }
+
+    public void setReassertPeriod(long reassertPeriod) {
+        this.reassertPeriod = reassertPeriod;
+    }
+
+    public DeviceRegistry getDeviceRegistry() {
+        return device_registry;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retry_policy;
+    }
+
+    // threads: any
+    // run task on the timer thread after delay ms: it must not block
+    public void retryLater(final Runnable task, final long delay) {
+        timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // first address of remoteCommandAddress
+    public long getDefaultRemoteCommand() {
+        return default_remote_command;
+    }
+
+    // threads: tomcat
+    // returns false if this node is not a known remote command
+    public boolean setLED(final long address, final int led, final boolean on) {
+        final RemoteDevice device = device_registry.get(address);
+        if (device == null || !device.isRemoteCommand()) {
+            log.warn("unknown remote command: " + Tools.addressToString(address));
+            return false;
+        }
+        device.getOutputs().set(RemoteOutputs.LED0 + led, on);
+        return true;
+    }
+
+    // threads: tomcat
+    // returns null on failure, or if the command has not been sent within 30 s
+    // (the link may be down)
+    public byte[] sendRemoteATCommand(final long address, final String command, final boolean ack)
+            throws InterruptedException {
+        try {
+            return submitRemoteATCommand(address, command, ack).get(30000, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException ex) {
+            log.warn("timeout waiting for remote AT command " + command.substring(0, 2));
+            return null;
+        } catch (final ExecutionException ex) {
+            log.error(ex);
+            return null;
+        }
+    }
+
+    // threads: any
+    // queue a remote AT command, commands to the same node are sent in order
+    // the future is completed with the response value, or null on failure (a
+    // command without ack is completed with null once handed to the serial
+    // link), and fails if the command has been dropped or could not be sent
+    public ListenableFuture<byte[]> submitRemoteATCommand(final long address, final String command,
+            final boolean ack) {
+        final RemoteDevice device = device_registry.get(address);
+        if (device == null) {
+            log.warn("unknown device: " + Tools.addressToString(address));
+            return AsyncResult.<byte[]> forExecutionException(
+                    new IllegalArgumentException("unknown device: " + Tools.addressToString(address)));
+        }
+        return device.submit(command, ack);
+    }
+
     // threads: tomcat
     @Override
     public void destroy() throws Exception {
         synchronized (connection_lock) {
-            // make the waiting read() exit, in the serial reader thread (the
-            // thread.interrupt() call that occurs in serial_reader.close() is
-            // not sufficient to make a read exit)
-            socket.close();
-
-            if (serial_reader != null) {
-                serial_reader.close();
+            if (serial_link != null) {
+                serial_link.close();
+                serial_link = null;
                 serial_reader = null;
-            }
-            if (serial_writer != null) {
-                serial_writer.close();
                 serial_writer = null;
             }
 
             thread.interrupt();
             thread.join();
         }
+        event_loop.close();
+        capture.close();
+        for (final RemoteDevice device : device_registry.getDevices())
+            device.clearCommands();
+        dispatcher.shutdownNow();
+        http_actions.shutdown();
+        timer.shutdownNow();
     }
 
     // threads: SerialPortHandler
@@ -108,36 +299,68 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
     private void connectSerial() throws InterruptedException, IOException {
         log.debug("trying to connect to serial port");
 
-        if (socket != null && !socket.isClosed())
-            socket.close();
-        if (serial_reader != null) {
-            serial_reader.close();
+        if (serial_link != null) {
+            serial_link.close();
+            serial_link = null;
             serial_reader = null;
-        }
-        if (serial_writer != null) {
-            serial_writer.close();
             serial_writer = null;
         }
 
-        try {
-            socket = new Socket(serialServerHostName, serialServerPortNumber);
-        } catch (final UnknownHostException ex) {
-            log.error(ex);
-            return;
-        } catch (final IOException ex) {
-            log.error(ex);
-            return;
+        // the connection is established by the event loop thread
+        Metrics.RECONNECTS.increment();
+        serial_link = new SerialLink(serialServerHostName, serialServerPortNumber, timer,
+                capture.isEnabled() ? capture : null);
+        serial_reader = serial_link.getReader();
+        serial_writer = serial_link.getWriter();
+        for (final RemoteDevice device : device_registry.getDevices())
+            if (device.isRemoteCommand())
+                serial_reader.subscribe(0x82, device.getAddress(), new FrameListener() {
+                    @Override
+                    public void frameReceived(final XBeeFrame frame) {
+                        handleIOSample(device, frame);
+                    }
+                }, dispatcher);
+        event_loop.register(serial_link);
+        if (!serial_link.awaitConnected(5000)) {
+            log.error("can not connect to " + serial_link);
+            serial_link.close();
         }
-
-        serial_reader = new SerialReader();
-        serial_reader.start(socket);
-        serial_writer = new SerialWriter();
-        serial_writer.start(socket);
     }
 
     // threads: tomcat
     @Override
     public void afterPropertiesSet() throws Exception {
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+                new CustomizableThreadFactory("SerialPortHandler-timer-"));
+        timer.setRemoveOnCancelPolicy(true);
+        this.timer = timer;
+
+        module_configs = new ModuleConfigCache(configCacheFile);
+        capture = new LinkCapture(captureFile, captureSize);
+        device_registry = new DeviceRegistry(reassertPeriod);
+        final long remote_commands[] = Tools.parseAddresses(remoteCommandAddress);
+        if (remote_commands.length == 0)
+            throw new IllegalArgumentException("no remote command address");
+        default_remote_command = remote_commands[0];
+        for (final long address : remote_commands)
+            device_registry.register(address, true);
+        for (final long address : Tools.parseAddresses(devices))
+            device_registry.register(address, false);
+        http_actions = new HttpActionExecutor(4, 2, 8, 5000, 10000);
+        dispatcher = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("SerialPortHandler-dispatcher-"));
+
+        event_loop = new SerialEventLoop();
+        event_loop.start();
+
+        Metrics.gauge("xbee_writer_queue_depth", "items waiting to be written on the serial link", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                // unsynchronized read, for display only
+                final SerialWriter writer = serial_writer;
+                return writer != null ? writer.getQueueDepth() : 0;
+            }
+        });
+
         thread = new Thread(this, "SerialPortHandler");
         thread.start();
     }
@@ -152,27 +375,118 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
         return sendATCommand("ATND\r", "\r\r\r");
     }
 
+    public static long getAddress(final long address_high, final long address_low) {
+        return (address_high << 32) | (address_low & 0xffffffffL);
+    }
+
+    // threads: any
+    // send frame once the airtime scheduler allows it
+    // must be called within at_mode_lock synchronization
+    private void sendFrameAfter(final PacedFrame paced_frame, final long delay)
+            throws IOException, InterruptedException {
+        if (delay == 0) {
+            paced_frame.send();
+            return;
+        }
+
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // never send a frame while the module is in AT command mode
+                    synchronized (paced_lock) {
+                        if (at_mode)
+                            deferred_frames.add(paced_frame);
+                        else
+                            paced_frame.send();
+                    }
+                } catch (final IOException | InterruptedException ex) {
+                    log.warn(ex);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // threads: tomcat, SerialPortHandler
+    // must be called within at_mode_lock synchronization
+    // leaving AT command mode sends the paced frames held meanwhile, in order
+    private void setATMode(final boolean on) throws IOException, InterruptedException {
+        synchronized (paced_lock) {
+            at_mode = on;
+            if (!on) {
+                for (final PacedFrame paced_frame : deferred_frames)
+                    paced_frame.send();
+                deferred_frames.clear();
+            }
+        }
+    }
+
+    // threads: any
+    // returns null if interrupted or failed
+    private <T> T getResult(final ListenableFuture<T> future) throws InterruptedException {
+        try {
+            // no timeout needed: the response table completes the future with
+            // a null frame on timeout, and fails it on disconnection
+            return future.get();
+        } catch (final ExecutionException ex) {
+            log.error(ex);
+            return null;
+        }
+    }
+
+    // threads: any
+    // start: System.nanoTime() when the request is written
+    private void measure(final ListenableFuture<XBeeFrame> response, final long start, final LatencyHistogram rtt,
+            final StripedCounter timeouts) {
+        response.addCallback(new ListenableFutureCallback<XBeeFrame>() {
+            @Override
+            public void onSuccess(final XBeeFrame frame) {
+                if (frame != null)
+                    rtt.recordSince(start);
+                else
+                    timeouts.increment();
+            }
+
+            @Override
+            public void onFailure(final Throwable ex) {
+                // the link went down (ClosedChannelException): not a timeout
+                if (!(ex instanceof ClosedChannelException))
+                    timeouts.increment();
+            }
+        });
+    }
+
     // threads: tomcat
     private boolean sendDataFrame(final long address_high, final long address_low, final String msg)
             throws IOException, InterruptedException {
-        if (msg.getBytes("ISO8859-1").length == 0) {
+        final Boolean retval = getResult(sendDataFrameAsync(address_high, address_low, msg));
+        return retval != null && retval;
+    }
+
+    // threads: any
+    // the future is completed by the serial reader or by the timer thread:
+    // callbacks must not block
+    public ListenableFuture<Boolean> sendDataFrameAsync(final long address_high, final long address_low,
+            final String msg) throws IOException, InterruptedException {
+        final byte[] msg_bytes = msg.getBytes("ISO8859-1");
+        if (msg_bytes.length == 0) {
             log.error("invalid data length");
-            return false;
+            return new AsyncResult<Boolean>(false);
         }
 
-        final int frame_id;
-        final XBeeFrame frame;
+        final ListenableFuture<XBeeFrame> response;
         synchronized (connection_lock) {
             synchronized (at_mode_lock) {
                 if (serial_reader == null || serial_writer == null || serial_reader.getError()
                         || serial_writer.getError()) {
                     log.warn("not connected");
-                    return false;
+                    return new AsyncResult<Boolean>(false);
                 }
 
-                frame_id = getNewFrameId();
-                final byte[] data = new byte[8
-                        /* 64 bit dest addr */ + 1 /* transmit options */ + msg.getBytes("ISO8859-1").length];
+                final int frame_id = getNewFrameId();
+                if (frame_id == 0)
+                    return new AsyncResult<Boolean>(false);
+                final byte[] data = new byte[8 /* 64 bit dest addr */ + 1 /* transmit options */ + msg_bytes.length];
                 data[0] = (byte) ((address_high >> 24) & 0xff);
                 data[1] = (byte) ((address_high >> 16) & 0xff);
                 data[2] = (byte) ((address_high >> 8) & 0xff);
@@ -182,105 +496,135 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
                 data[6] = (byte) ((address_low >> 8) & 0xff);
                 data[7] = (byte) (address_low & 0xff);
                 data[8] = 0x00;
-                for (int i = 0; i < msg.getBytes("ISO8859-1").length; i++)
-                    data[9 + i] = msg.getBytes("ISO8859-1")[i];
-                frame = new XBeeFrame(0x00, frame_id, data);
-                serial_writer.sendFrame(frame);
+                System.arraycopy(msg_bytes, 0, data, 9, msg_bytes.length);
+                final long address = getAddress(address_high, address_low);
+                final long delay = airtime_scheduler.reserve(address);
+                response = serial_reader.expectFrameWithId(frame_id);
+                airtime_scheduler.track(address, response);
+                sendFrameAfter(new PacedFrame(serial_writer, serial_reader, new XBeeFrame(0x00, frame_id, data), address,
+                        response, null, null), delay);
             }
         }
 
-        // must NOT synchronize connection_lock or at_mode_lock (to let other
-        // commands being sent while waiting for a reply to this one)
-        // thus, serial_reader can be null => an exception can be thrown here
-        // (and must be catch at a higher level)
-        final XBeeFrame retframe = serial_reader.getFrameWithId(frame_id, 5000);
-        if (retframe != null) {
-            final byte[] content = retframe.getContent();
-            if (content.length != 1) {
-                log.error("invalid frame");
-                return false;
-            }
-            switch (0xff & content[0]) {
-            case 0:
-                return true;
+        return new ListenableFutureAdapter<Boolean, XBeeFrame>(response) {
+            @Override
+            protected Boolean adapt(final XBeeFrame retframe) {
+                if (retframe == null)
+                    return false;
+                final byte[] content = retframe.getContent();
+                if (content.length != 1) {
+                    log.error("invalid frame");
+                    return false;
+                }
+                switch (0xff & content[0]) {
+                case 0:
+                    return true;
 
-            case 1:
-                log.warn("transmitted data: no ACK received");
-                return false;
+                case 1:
+                    log.warn("transmitted data: no ACK received");
+                    return false;
 
-            case 2:
-                log.warn("transmitted data: CCA failure");
-                return false;
+                case 2:
+                    log.warn("transmitted data: CCA failure");
+                    return false;
 
-            case 3:
-                log.warn("transmitted data: Purged");
-                return false;
+                case 3:
+                    log.warn("transmitted data: Purged");
+                    return false;
 
-            default:
-                log.warn("transmitted data: invalid status code");
-                return false;
+                default:
+                    log.warn("transmitted data: invalid status code");
+                    return false;
+                }
             }
-        } else
-            return false;
+        };
     }
 
     // threads: tomcat
     private byte[] sendATCommandFrameSingleQuery(final String command) throws IOException, InterruptedException {
-        if (command.getBytes("ISO8859-1").length < 2) {
+        return getResult(sendATCommandFrameAsync(command));
+    }
+
+    // threads: tomcat, SerialPortHandler
+    // the commands are written back to back, each with its own frame id, and
+    // their responses are collected as they arrive: a batch costs about one
+    // round trip instead of one per command
+    // the module handles them in order, so that writes can be followed by AC or WR
+    // returns the values, null for each command that failed
+    private byte[][] sendATCommandFrames(final String... commands) throws IOException, InterruptedException {
+        final List<ListenableFuture<byte[]>> futures = new ArrayList<ListenableFuture<byte[]>>();
+        synchronized (connection_lock) {
+            for (final String command : commands)
+                futures.add(sendATCommandFrameAsync(command));
+        }
+        final byte[][] retval = new byte[commands.length][];
+        for (int i = 0; i < commands.length; i++)
+            retval[i] = getResult(futures.get(i));
+        return retval;
+    }
+
+    // threads: any
+    // the future is completed by the serial reader or by the timer thread:
+    // callbacks must not block
+    public ListenableFuture<byte[]> sendATCommandFrameAsync(final String command)
+            throws IOException, InterruptedException {
+        final byte[] command_bytes = command.getBytes("ISO8859-1");
+        if (command_bytes.length < 2) {
             log.error("invalid command length");
-            return null;
+            return new AsyncResult<byte[]>(null);
         }
 
-        final int frame_id;
-        final XBeeFrame frame;
+        final ListenableFuture<XBeeFrame> response;
         synchronized (connection_lock) {
             synchronized (at_mode_lock) {
                 if (serial_reader == null || serial_writer == null || serial_reader.getError()
                         || serial_writer.getError()) {
                     log.warn("not connected");
-                    return null;
+                    return new AsyncResult<byte[]>(null);
                 }
 
-                frame_id = getNewFrameId();
-                frame = new XBeeFrame(0x08, frame_id, command.getBytes("ISO8859-1"));
-                serial_writer.sendFrame(frame);
+                final int frame_id = getNewFrameId();
+                if (frame_id == 0)
+                    return new AsyncResult<byte[]>(null);
+                response = serial_reader.expectFrameWithId(frame_id, retry_policy.getTimeout(RetryPolicy.LOCAL));
+                retry_policy.track(RetryPolicy.LOCAL, response, System.nanoTime());
+                measure(response, System.nanoTime(), Metrics.AT_RTT, Metrics.AT_TIMEOUTS);
+                serial_writer.sendFrame(new XBeeFrame(0x08, frame_id, command_bytes));
             }
         }
 
-        // must NOT synchronize connection_lock or at_mode_lock (to let other
-        // commands being sent while waiting for a reply to this one)
-        // thus, serial_reader can be null => an exception can be thrown here
-        // (and must be catch at a higher level)
-        final XBeeFrame retframe = serial_reader.getFrameWithId(frame_id, 5000);
-        if (retframe != null) {
-            final byte[] content = retframe.getContent();
-            if (content.length < 3 || content[0] != command.getBytes("ISO8859-1")[0]
-                    || content[1] != command.getBytes("ISO8859-1")[1]) {
-                log.error("invalid frame");
-                return null;
-            }
-            switch (0xff & content[2]) {
-            case 0:
-                return ArrayUtils.subarray(content, 3, content.length);
+        return new ListenableFutureAdapter<byte[], XBeeFrame>(response) {
+            @Override
+            protected byte[] adapt(final XBeeFrame retframe) {
+                if (retframe == null)
+                    return null;
+                final byte[] content = retframe.getContent();
+                if (content.length < 3 || content[0] != command_bytes[0] || content[1] != command_bytes[1]) {
+                    log.error("invalid frame");
+                    return null;
+                }
+                switch (0xff & content[2]) {
+                case 0:
+                    return ArrayUtils.subarray(content, 3, content.length);
 
-            case 1:
-                log.warn("AT command response frame: ERROR");
-                return null;
+                case 1:
+                    log.warn("AT command response frame: ERROR");
+                    return null;
 
-            case 2:
-                log.warn("AT command response frame: INVALID COMMAND");
-                return null;
+                case 2:
+                    log.warn("AT command response frame: INVALID COMMAND");
+                    return null;
 
-            case 3:
-                log.warn("AT command response frame: INVALID PARAMETER");
-                return null;
+                case 3:
+                    log.warn("AT command response frame: INVALID PARAMETER");
+                    return null;
 
-            default:
-                log.warn("AT command response frame: invalid status code");
-                return null;
+                default:
+                    log.warn("AT command response frame: invalid status code");
+                    return null;
+                }
             }
-        } else
-            return null;
+        };
     }
 
     // threads: tomcat
@@ -292,26 +636,36 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
     // threads: tomcat
     public byte[] sendRemoteATCommandFrameSingleQueryAck(final long address_high, final long address_low,
             final String command, final boolean ack) throws IOException, InterruptedException {
-        if (command.getBytes("ISO8859-1").length < 2) {
+        return getResult(sendRemoteATCommandFrameAsync(address_high, address_low, command, ack));
+    }
+
+    // threads: any
+    // the future is completed by the serial reader or by the timer thread:
+    // callbacks must not block
+    // it fails if the frame can not be sent, a frame without ack is completed
+    // with null once handed to the serial link
+    public ListenableFuture<byte[]> sendRemoteATCommandFrameAsync(final long address_high, final long address_low,
+            final String command, final boolean ack) throws IOException, InterruptedException {
+        final byte[] command_bytes = command.getBytes("ISO8859-1");
+        if (command_bytes.length < 2) {
             log.error("invalid command length");
-            return null;
+            return AsyncResult.<byte[]> forExecutionException(new IllegalArgumentException("invalid command length"));
         }
 
-        final int frame_id;
-        final XBeeFrame frame;
+        final ListenableFuture<XBeeFrame> response;
         synchronized (connection_lock) {
             synchronized (at_mode_lock) {
                 if (serial_reader == null || serial_writer == null || serial_reader.getError()
                         || serial_writer.getError()) {
                     log.warn("not connected");
-                    return null;
+                    return AsyncResult.<byte[]> forExecutionException(new IOException("not connected"));
                 }
 
-                frame_id = ack ? getNewFrameId() : 0;
-                final byte[] command_data = new byte[8
-                        /* 64 bit dest addr */ + 2 /*
-                                                    * 16 bit dest addr == 0xfffe
-                                                    */ + 1 /* command options */ + command.getBytes("ISO8859-1").length];
+                final int frame_id = ack ? getNewFrameId() : 0;
+                if (ack && frame_id == 0)
+                    return AsyncResult.<byte[]> forExecutionException(new IOException("no free frame id"));
+                final byte[] command_data = new byte[8 /* 64 bit dest addr */ + 2 /* 16 bit dest addr == 0xfffe */
+                        + 1 /* command options */ + command_bytes.length];
                 command_data[0] = (byte) ((address_high >> 24) & 0xff);
                 command_data[1] = (byte) ((address_high >> 16) & 0xff);
                 command_data[2] = (byte) ((address_high >> 8) & 0xff);
@@ -323,35 +677,34 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
                 command_data[8] = (byte) 0xff; // 32 bit address only
                 command_data[9] = (byte) 0xfe;
                 command_data[10] = 0x02; // apply changes on remote immediately
-                for (int i = 0; i < command.getBytes("ISO8859-1").length; i++)
-                    command_data[11 + i] = command.getBytes("ISO8859-1")[i];
-                frame = new XBeeFrame(0x17, frame_id, command_data);
-                serial_writer.sendFrame(frame);
+                System.arraycopy(command_bytes, 0, command_data, 11, command_bytes.length);
+                // the timeout follows the measured round trips, plus 2.5 * SP
+                // for a sleeping end device (see RetryPolicy)
+                final long address = getAddress(address_high, address_low);
+                final long delay = airtime_scheduler.reserve(address);
+                if (ack) {
+                    response = serial_reader.expectFrameWithId(frame_id);
+                    airtime_scheduler.track(address, response);
+                } else
+                    response = null;
+                sendFrameAfter(new PacedFrame(serial_writer, serial_reader, new XBeeFrame(0x17, frame_id, command_data),
+                        address, response, Metrics.REMOTE_AT_RTT, Metrics.REMOTE_AT_TIMEOUTS), delay);
             }
         }
 
-        if (ack) {
-            // must NOT synchronize connection_lock or at_mode_lock (to let
-            // other commands being sent while waiting for a reply to this one)
-            // thus, serial_reader can be null => an exception can be thrown
-            // here (and must be catch at a higher level)
-            // en fait, au lieu de 15000, faudrait mettre 25000 car le timeout
-            // est égal à 2,5 fois SP (à vérifier), quoi que c'est aussi 3
-            // essais séparés de 200 ms => bi
-            final XBeeFrame retframe = serial_reader.getFrameWithId(frame_id, 15000); // 15000
-                                                                                      // since
-                                                                                      // SP
-                                                                                      // is
-                                                                                      // set
-                                                                                      // to
-                                                                                      // 10000
-                                                                                      // ms
-            if (retframe != null) {
+        if (!ack)
+            return new AsyncResult<byte[]>(null);
+
+        return new ListenableFutureAdapter<byte[], XBeeFrame>(response) {
+            @Override
+            protected byte[] adapt(final XBeeFrame retframe) {
+                if (retframe == null) {
+                    log.warn("AT remote command : timeout waiting for response frame");
+                    return null;
+                }
                 final byte[] content = retframe.getContent();
-                if (content.length < 8
-                        /* 64 bit address */ + 2 /* 16 bit address */ + 3
-                        || content[8 + 2] != command.getBytes("ISO8859-1")[0]
-                        || content[8 + 2 + 1] != command.getBytes("ISO8859-1")[1]) {
+                if (content.length < 8 /* 64 bit address */ + 2 /* 16 bit address */ + 3
+                        || content[8 + 2] != command_bytes[0] || content[8 + 2 + 1] != command_bytes[1]) {
                     log.error("invalid frame");
                     return null;
                 }
@@ -379,12 +732,8 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
                     log.warn("AT remote command response frame: invalid status code");
                     return null;
                 }
-            } else {
-                log.warn("AT remote command : timeout waiting for response frame");
-                return null;
             }
-        } else
-            return null;
+        };
     }
 
     // threads: tomcat
@@ -402,6 +751,23 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
     // synchronized: connection_lock or nothing
     public String sendATCommand(final String command, final String end_of_data, final boolean ignore_atcn)
             throws IOException, InterruptedException {
+        final String[] retval = sendATCommands(new String[] { command }, new String[] { end_of_data }, !ignore_atcn);
+        return retval == null ? null : retval[0];
+    }
+
+    // threads: tomcat, SerialPortHandler
+    // synchronized: connection_lock or nothing
+    // command mode session: +++ is sent once, the commands are run in order and
+    // command mode is left once, so that the guard times are paid once for the
+    // whole list
+    // end_of_data: terminator of the response of each command
+    // exit_command_mode: send ATCN after the last command (false if the last
+    // command leaves command mode by itself, like ATFR)
+    // returns the responses, or null if command mode could not be entered
+    // the session stops at the first command without response: its response
+    // and the next ones are null
+    public String[] sendATCommands(final String[] commands, final String[] end_of_data,
+            final boolean exit_command_mode) throws IOException, InterruptedException {
         synchronized (connection_lock) {
             synchronized (at_mode_lock) {
                 if (serial_reader == null || serial_writer == null || serial_reader.getError()
@@ -410,50 +776,55 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
                     return null;
                 }
 
-                // flush unread data
-                final String prev = serial_reader.getData();
-                if (prev.length() > 0)
-                    log.warn("data flushed: '" + prev + "'");
-
-                // il semble que s'il y a des envois en cours en mode cyclique
-                // qui attendent un timeout car le module destinataire n'est pas
-                // dispo, on n'arrivera pas à faire fonctionner la phase
-                // initiale, avec +++ et les commandes AT
-                // dans ce cas débrancher et rebrancher le module de son support
-                // USB
-                XBeeATCommand xbee_at_command = new XBeeATCommand("+++", "OK\r");
-
-                // waiting 1.5 times default GUARD TIME - il faut que la valeur
-                // de GT préconfigurée sur le module soit celle par défaut (1
-                // seconde)
-                Thread.sleep(1500);
-
-                serial_writer.sendATCommand(xbee_at_command);
-                log.debug("waiting for response after +++");
-                if (serial_reader.waitForData(xbee_at_command.getEndOfData(), 6000) == null) {
-                    log.error("timeout waiting for OK after +++");
-
-                    // log.error("sending ATCN to get out of AT mode");
-                    // xbee_at_command = new XBeeATCommand("ATCN\r", "OK\r");
-                    // serial_writer.sendATCommand(xbee_at_command);
-                    // final String retval_atcn;
-                    // if ((retval_atcn =
-                    // serial_reader.waitForData(xbee_at_command.getEndOfData(),
-                    // 6000)) == null || !retval_atcn.isEmpty())
-                    // log.error("timeout waiting for OK after ATCN");
+                setATMode(true);
+                try {
+                    // flush unread data
+                    final String prev = serial_reader.getData();
+                    if (prev.length() > 0)
+                        log.warn("data flushed: '" + prev + "'");
+
+                    // il semble que s'il y a des envois en cours en mode cyclique
+                    // qui attendent un timeout car le module destinataire n'est pas
+                    // dispo, on n'arrivera pas à faire fonctionner la phase
+                    // initiale, avec +++ et les commandes AT
+                    // dans ce cas débrancher et rebrancher le module de son support
+                    // USB
+                    XBeeATCommand xbee_at_command = new XBeeATCommand("+++", "OK\r");
+
+                    // the writer keeps the line silent for 1.2 times the default
+                    // GUARD TIME before and after +++ (see XBeeATCommand) - il faut
+                    // que la valeur de GT préconfigurée sur le module soit celle
+                    // par défaut (1 seconde)
+                    serial_writer.sendATCommand(xbee_at_command);
+                    log.debug("waiting for response after +++");
+                    if (serial_reader.waitForData(xbee_at_command.getEndOfData(), 6000) == null) {
+                        log.error("timeout waiting for OK after +++");
+
+                        // log.error("sending ATCN to get out of AT mode");
+                        // xbee_at_command = new XBeeATCommand("ATCN\r", "OK\r");
+                        // serial_writer.sendATCommand(xbee_at_command);
+                        // final String retval_atcn;
+                        // if ((retval_atcn =
+                        // serial_reader.waitForData(xbee_at_command.getEndOfData(),
+                        // 6000)) == null || !retval_atcn.isEmpty())
+                        // log.error("timeout waiting for OK after ATCN");
+
+                        return null;
+                    }
+                    log.debug("after 'waiting for response after +++'");
 
-                    return null;
-                }
-                log.debug("after 'waiting for response after +++'");
+                    final String[] retval = new String[commands.length];
+                    for (int i = 0; i < commands.length; i++) {
+                        xbee_at_command = new XBeeATCommand(commands[i], end_of_data[i]);
+                        serial_writer.sendATCommand(xbee_at_command);
+                        if ((retval[i] = serial_reader.waitForData(xbee_at_command.getEndOfData(), 6000)) == null) {
+                            // the module has probably left command mode (CT timeout)
+                            log.error("timeout waiting for AT command result: " + commands[i].trim());
+                            return retval;
+                        }
+                    }
 
-                xbee_at_command = new XBeeATCommand(command, end_of_data);
-                serial_writer.sendATCommand(xbee_at_command);
-                final String retval;
-                if ((retval = serial_reader.waitForData(xbee_at_command.getEndOfData(), 6000)) == null) {
-                    log.error("timeout waiting for AT command result");
-                    return null;
-                } else {
-                    if (!ignore_atcn) {
+                    if (exit_command_mode) {
                         xbee_at_command = new XBeeATCommand("ATCN\r", "OK\r");
                         serial_writer.sendATCommand(xbee_at_command);
                         final String retval_atcn;
@@ -461,26 +832,294 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
                                 || !retval_atcn.isEmpty())
                             log.error("timeout waiting for OK after ATCN");
                     }
-                    ;
 
                     return retval;
+                } finally {
+                    setATMode(false);
+                }
+            }
+        }
+    }
+
+    // threads: SerialPortHandler
+    private void applyOutput(final RemoteDevice device, final int output, final boolean on)
+            throws IOException, InterruptedException {
+        airtime_scheduler.awaitSlot(device.getAddress());
+        sendRemoteATCommandFrameAsync(device.getAddressHigh(), device.getAddressLow(),
+                RemoteOutputs.getCommand(output, on), true).addCallback(new ListenableFutureCallback<byte[]>() {
+                    @Override
+                    public void onSuccess(final byte[] value) {
+                        device.frameSent(value != null);
+                        device.getOutputs().sent(output, on, value != null);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable ex) {
+                        device.frameSent(false);
+                        device.getOutputs().sent(output, on, false);
+                    }
+                });
+    }
+
+    // threads: SerialPortHandler
+    private void sendCommand(final RemoteDevice device, final RemoteDevice.Command command)
+            throws IOException, InterruptedException {
+        airtime_scheduler.awaitSlot(device.getAddress());
+        sendRemoteATCommandFrameAsync(device.getAddressHigh(), device.getAddressLow(), command.getCommand(),
+                command.getAck()).addCallback(new ListenableFutureCallback<byte[]>() {
+                    @Override
+                    public void onSuccess(final byte[] value) {
+                        device.frameSent(!command.getAck() || value != null);
+                        device.commandDone(command, value);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable ex) {
+                        device.frameSent(false);
+                        device.commandFailed(command, ex);
+                    }
+                });
+    }
+
+    // threads: SerialPortHandler-dispatcher
+    private void handleIOSample(final RemoteDevice device, final XBeeFrame io_frame) {
+        device.sampleReceived(io_frame);
+        final boolean button[] = device.button;
+        final boolean last_button[] = device.last_button;
+        final int analog[] = device.analog;
+        final int last_analog[] = device.last_analog;
+
+        // log.debug("frame got: " + io_frame.toString());
+        // io_frame.content[10] : nombre de samples
+        // log.debug("samples: XXXXXXXXXXXXXXXXXXXXXX: " + io_frame.content[10]);
+//                			log.info("channel indicator: " + Tools.byteToBinaryString(io_frame.content[11]) + " " + Tools.byteToBinaryString(io_frame.content[12]));  
+        log.info("DIO: " + Tools.byteToBinaryString(io_frame.content[13]) + " " + Tools.byteToBinaryString(io_frame.content[14]));
+        button[0] = ((io_frame.content[13] & 1) != 0);
+        button[1] = ((io_frame.content[14] & (1 << 7)) != 0);
+        button[2] = ((io_frame.content[14] & (1 << 2)) != 0);
+        button[3] = ((io_frame.content[14] & (1 << 3)) != 0);
+        if ((button[0] == true && last_button[0] == false) || (button[1] == true && last_button[1] == false) || (button[2] == true && last_button[2] == false) || (button[3] == true && last_button[3] == false)) {
+            device.start_buzzer = System.currentTimeMillis();
+            device.getOutputs().set(RemoteOutputs.BUZZER, true);
+        }
+        if (button[0] == true && last_button[0] == false) {
+            http_actions.submit("http://v.fenyo.net/newweb/cplus/swlights-rc.cgi");
+        }
+        if (button[1] == true && last_button[1] == false) {
+            http_actions.submit("http://v.fenyo.net/newweb/cplus/swlights-rc-haut.cgi");
+        }
+
+        if (button[3] == true && last_button[3] == false) {
+            final Date date = new Date();
+            final Calendar calendar = GregorianCalendar.getInstance();
+            calendar.setTime(date); 
+            final int h = calendar.get(Calendar.HOUR_OF_DAY);
+            final String url;
+            if (h >= 14 || h < 4) url = "http://v.fenyo.net/newweb/cplus/volets-salon-bas.cgi";
+            else url = "http://v.fenyo.net/newweb/cplus/volets-salon-haut.cgi";
+            http_actions.submit(url);
+        }
+        if (button[2] == true && last_button[2] == false) {
+            final String url;
+            if (device.getOutputs().get(RemoteOutputs.LED2) == false) url = "http://v.fenyo.net/newweb/cplus/tnt-marantz-fast.cgi";
+            else url = "http://v.fenyo.net/newweb/cplus/off-marantz-fast.cgi";
+            http_actions.submit(url);
+        }
+
+        last_button[0] = button[0];
+        last_button[1] = button[1];
+        last_button[2] = button[2];
+        last_button[3] = button[3];
+
+        analog[0] = ((255 & io_frame.content[15]) << 8) + (255 & io_frame.content[16]);
+        analog[1] = ((255 & io_frame.content[17]) << 8) + (255 & io_frame.content[18]);
+        log.info("analog0/1: " + analog[0] + " - " + analog[1]);
+
+        if (last_analog[0] != -1 && last_analog[1] != -1) {
+            for (int i = 0; i < 2; i ++) {
+                if (Math.abs(analog[i] - last_analog[i]) > 15 && analog[i] != 1023) {
+                    int v = analog[i];
+                    v = 1023 - v;
+                    v = v / 4;
+                    if (v < 1) v =  1;
+                    if (v > 254) v = 254;
+                    // log.debug("XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX " + i + " : " + analog[i]);
+                    http_actions.submit("http://v.fenyo.net/newweb/cplus/hue-set-bright-" + (i + 2) + ".cgi/" + v);
                 }
             }
         }
+
+        if (analog[0] != 1023) last_analog[0] = analog[0];
+        if (analog[1] != 1023) last_analog[1] = analog[1];
+    }
+
+    // parameters of the fingerprint of a verified module configuration
+    private static final String[] FINGERPRINT_QUERIES = { "SH", "SL", "CE", "ID", "MM", "RN", "RR", "SC", "SD" };
+
+    // threads: SerialPortHandler
+    // returns the serial number of the module and the fingerprint of its
+    // configuration, or null on error
+    private String[] readFingerprint() throws IOException, InterruptedException {
+        final byte[][] results = sendATCommandFrames(FINGERPRINT_QUERIES);
+        String fingerprint = "";
+        for (int i = 0; i < FINGERPRINT_QUERIES.length; i++) {
+            if (results[i] == null)
+                return null;
+            if (i >= 2)
+                fingerprint += (i > 2 ? "," : "") + FINGERPRINT_QUERIES[i] + "=" + bytesArrayToString(results[i]);
+        }
+        return new String[] { bytesArrayToString(results[0]) + bytesArrayToString(results[1]), fingerprint };
+    }
+
+    // threads: SerialPortHandler
+    // full check of the module configuration, needed changes are applied and
+    // saved
+    // returns false if the module must be reconnected
+    private boolean verifyConfiguration() throws IOException, InterruptedException {
+        // every parameter is read in a single batch
+        final String[] queries = { "ID", "CE", "SH", "SL", "NI", "SM", "DH", "DL", "MY", "MM", "RN", "RR", "NT",
+                "NO", "SC", "SD" };
+        final long query_start = System.currentTimeMillis();
+        final byte[][] results = sendATCommandFrames(queries);
+        log.info("module parameters read in " + (System.currentTimeMillis() - query_start) + " ms");
+        boolean failed = false;
+        for (int i = 0; i < queries.length; i++)
+            if (results[i] == null || (results[i].length == 0 && !queries[i].equals("NI"))) {
+                log.warn("error reading " + queries[i]);
+                failed = true;
+            }
+        if (failed)
+            return false;
+        int idx = 0;
+        final byte[] module_id = results[idx++];
+        final byte[] module_ce = results[idx++];
+        final byte[] module_sh = results[idx++];
+        final byte[] module_sl = results[idx++];
+        final byte[] module_ni = results[idx++];
+        final byte[] module_sm = results[idx++];
+        final byte[] module_dh = results[idx++];
+        final byte[] module_dl = results[idx++];
+        final byte[] module_my = results[idx++];
+        final byte[] module_mm = results[idx++];
+        final byte[] module_rn = results[idx++];
+        final byte[] module_rr = results[idx++];
+        final byte[] module_nt = results[idx++];
+        final byte[] module_no = results[idx++];
+        final byte[] module_sc = results[idx++];
+        final byte[] module_sd = results[idx++];
+
+        // parameters to change, written in a single batch
+        final List<String> writes = new ArrayList<String>();
+
+        if (!bytesArrayToString(module_id).equals("afae")) {
+            log.warn("bad pan id " + bytesArrayToString(module_id) + "(should be afae)");
+
+System.exit(1);
+
+            log.info("trying to set pan id to afaeh");
+            writes.add("ID" + new String(new byte[] { (byte) 0xaf, (byte) 0xae }, "ISO8859-1"));
+        }
+
+        switch (module_ce[0]) {
+        case 0x00:
+            log.info("this module is an end device");
+            break;
+
+        case 0x01:
+            log.info("this module is a coordinator");
+            break;
+
+        default:
+            log.warn("error: this module is neither an end device nor a coordinator");
+            break;
+        }
+
+        log.info("module serial number: " + bytesArrayToString(module_sh) + bytesArrayToString(module_sl));
+        log.info("node id: " + new String(module_ni, "ISO8859-1"));
+        log.info("module SM mode: " + bytesArrayToString(module_sm));
+        log.info("module destination address: " + bytesArrayToString(module_dh) + bytesArrayToString(module_dl));
+
+        log.info("MY address: " + bytesArrayToString(module_my));
+//        if (!bytesArrayToString(module_my).equals("fffe")) {
+//            log.warn("bad MY address (should be fffe)");
+//            log.warn("trying to set MY address to fffe");
+//            writes.add("MY" + new String(new byte[] { (byte) 0xff, (byte) 0xfe }, "ISO8859-1"));
+//        }
+
+        log.info("mac mode: " + bytesArrayToString(module_mm));
+        if (!bytesArrayToString(module_mm).equals("00")) {
+            log.warn("bad mac mode (should be digi mode)");
+            log.warn("trying to set mac mode to digi");
+            writes.add("MM" + new String(new byte[] { 0x00 }, "ISO8859-1"));
+        }
+
+        log.info("back-off exponent: " + bytesArrayToString(module_rn));
+        if (!bytesArrayToString(module_rn).equals("00")) {
+            log.warn("bad back-off exponent");
+            log.warn("trying to set back-off exponent to 0");
+            writes.add("RN" + new String(new byte[] { 0x00 }, "ISO8859-1"));
+        }
+
+        log.info("retries (in addition to the standard 3 ones): " + bytesArrayToString(module_rr));
+        if (!bytesArrayToString(module_rr).equals("00"))
+            log.error("bad number of retries (should be 0 in addition to the standard 3 ones)");
+
+        log.info("node discovery time: " + (0xff & module_nt[0]) * 100 + " ms");
+//        if ((0xff & module_nt[0]) * 100 != 5000) {
+//            log.warn("trying to set node discovery time to 5 secs");
+//            writes.add("NT" + new String(new byte[] { 0x32 }, "ISO8859-1"));
+//        }
+
+//        if (!bytesArrayToString(module_no).equals("01")) {
+//            log.warn("node discovery option: no self response");
+//            log.warn("node discovery option: trying to activate self-response");
+//            writes.add("NO" + new String(new byte[] { 0x01 }, "ISO8859-1"));
+//        } else
+//            log.info("node discovery option: self response");
+
+        if (bytesArrayToString(module_sc).equals("1ffe"))
+            log.info("every XBee-PRO channels available");
+        else
+            log.warn("some XBee-PRO channels are excluded: " + bytesArrayToString(module_sc));
+
+        log.info("scan duration exponent: 4 (default value)");
+        if (!bytesArrayToString(module_sd).equals("04"))
+            log.warn("warning: scan duration exponent is not set to the default value");
+
+        // hand set SP, ST and DP (add them to writes)
+//        writes.add("SP" + new String(new byte[] { 3, (byte) 0xe8 }, "ISO8859-1"));
+//        writes.add("ST" + new String(new byte[] { (byte) 0xea, (byte) 0x60 }, "ISO8859-1"));
+//        writes.add("DP" + new String(new byte[] { 3, (byte) 0xe8 }, "ISO8859-1"));
+
+        // the changes are applied at once (AC) and saved with a single WR,
+        // flash is not written if nothing has changed
+        if (writes.isEmpty()) {
+            log.info("configuration is correct");
+            return true;
+        }
+        log.info("trying to save configuration");
+        writes.add("AC");
+        writes.add("WR");
+        final String[] commands = writes.toArray(new String[writes.size()]);
+        final byte[][] write_results = sendATCommandFrames(commands);
+        for (int i = 0; i < commands.length; i++)
+            if (write_results[i] == null || write_results[i].length > 0) {
+                log.warn("error writing " + commands[i].substring(0, 2));
+                failed = true;
+            } else if (commands[i].length() > 2)
+                log.warn(commands[i].substring(0, 2) + " set");
+        if (failed)
+            return false;
+        log.info("configuration saved");
+        return true;
     }
 
     // threads: SerialPortHandler
     @Override
     public void run() {
 //    	int cnt = 0;
-    	long start_buzzer = System.currentTimeMillis();
     	final long start_time = System.currentTimeMillis();
 
-    	boolean button[] = { true, true, true, true };
-    	boolean last_button[] = { true, true, true, true };
-    	int analog[] = { -1, -1 };
-    	int last_analog[] = { -1, -1 };
-    	
         try {
             boolean should_reconnect = false;
             while (true) {
@@ -494,286 +1133,69 @@ public class SerialPortHandler implements InitializingBean, DisposableBean, Runn
                             log.debug("avant connexion au coordinateur");
                             connectSerial();
                             log.debug("après connexion au coordinateur");
+                            device_registry.reset();
                             should_reconnect = false;
                             String value = sendATCommand("ATAP\r");
                             if (value == null || !value.equals(/* "1" */ "2")) {
                                 log.warn("invalid API mode: " + value);
                                 log.warn("trying to enable API mode w/escaped control characters");
-                                value = sendATCommand("ATAP2\r");
-                                if (value == null || !value.equals("OK")) {
+                                // a single command mode session, ATFR leaves command mode
+                                final String[] values = sendATCommands(
+                                        new String[] { "ATAP2\r", "ATWR\r", "ATAC\r", "ATFR\r" },
+                                        new String[] { "\r", "\r", "\r", "\r" }, false);
+                                if (values == null || values[0] == null || !values[0].equals("OK")) {
                                     log.warn("cannot set AP mode 2");
                                     should_reconnect = true;
+                                } else if (values[1] == null || values[2] == null || !values[1].equals("OK")
+                                        || !values[2].equals("OK")) {
+                                    log.warn("cannot apply changes");
+                                    should_reconnect = true;
                                 } else {
-                                    log.warn("trying to apply changes");
-                                    final String value1 = sendATCommand("ATWR\r");
-                                    final String value2 = sendATCommand("ATAC\r");
-                                    if (value1 == null || value2 == null || !value1.equals("OK")
-                                            || !value2.equals("OK")) {
-                                        log.warn("cannot apply changes");
+                                    log.warn("success: AP mode 2 is set");
+                                    // wait for the system to reset (prevent
+                                    // sending bytes before reset is done)
+                                    Thread.sleep(1000);
+                                    if (values[3] == null || !values[3].equals("OK")) {
+                                        log.warn("cannot reset XBee module");
                                         should_reconnect = true;
-                                    } else {
-                                        log.warn("success: AP mode 2 is set");
-                                        log.warn("resetting XBee module");
-                                        value = sendATCommand("ATFR\r", "\r", true);
-                                        // wait for the system to reset (prevent
-                                        // sending bytes before reset is done)
-                                        Thread.sleep(1000);
-                                        if (!value.equals("OK")) {
-                                            log.warn("cannot reset XBee module");
-                                            should_reconnect = true;
-                                        }
                                     }
                                 }
                             }
                             if (!should_reconnect) {
                                 log.info("API mode is correct");
 
-                                byte[] bytes = sendATCommandFrameSingleQuery("ID");
-                                if (bytes == null || !bytesArrayToString(bytes).equals("afae")) {
-                                    if (bytes == null)
-                                        log.warn("bad pan id null (should be afae)");
-                                    else
-                                        log.warn("bad pan id " + bytesArrayToString(bytes) + "(should be afae)");
-
-System.exit(1);
-
-                                    log.info("trying to set pan id to afaeh");
-                                    bytes = sendATCommandFrameSingleQuery(
-                                            "ID" + new String(new byte[] { (byte) 0xaf, (byte) 0xae }));
-                                    if (bytes == null || bytes.length > 0) {
-                                        log.warn("error");
-                                        should_reconnect = true;
-                                        continue;
-                                    }
-                                    log.debug("pan id set to AFAEh");
-                                }
-
-                                bytes = sendATCommandFrameSingleQuery("CE");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                switch (bytes[0]) {
-                                case 0x00:
-                                    log.info("this module is an end device");
-                                    break;
-
-                                case 0x01:
-                                    log.info("this module is a coordinator");
-                                    break;
-
-                                default:
-                                    log.warn("error: this module is neither an end device nor a coordinator");
-                                    break;
-                                }
-
-                                bytes = sendATCommandFrameSingleQuery("SH");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                final String module_sh = bytesArrayToString(bytes);
-                                bytes = sendATCommandFrameSingleQuery("SL");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                final String module_sl = bytesArrayToString(bytes);
-                                log.info("module serial number: " + module_sh + module_sl);
-
-                                bytes = sendATCommandFrameSingleQuery("NI");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                log.info("node id: " + new String(bytes, "ISO8859-1"));
-
-                                bytes = sendATCommandFrameSingleQuery("SM");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                final String module_sm = bytesArrayToString(bytes);
-                                
-                                log.info("module SM mode: " + module_sm);
-                                
-                                bytes = sendATCommandFrameSingleQuery("DH");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                final String module_dh = bytesArrayToString(bytes);
-                                bytes = sendATCommandFrameSingleQuery("DL");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                final String module_dl = bytesArrayToString(bytes);
-                                log.info("module destination address: " + module_dh + module_dl);
-
-                                bytes = sendATCommandFrameSingleQuery("MY");
-                                if (bytes == null) {
-                                    log.warn("error");
+                                final String[] fingerprint = readFingerprint();
+                                if (fingerprint == null) {
+                                    log.warn("error reading configuration fingerprint");
                                     should_reconnect = true;
                                     continue;
                                 }
-                                log.info("MY address: " + bytesArrayToString(bytes));
-//                                if (!bytesArrayToString(bytes).equals("fffe")) {
-//                                    log.warn("bad MY address (should be fffe)");
-//                                    log.warn("trying to set MY address to fffe");
-//                                    bytes = sendATCommandFrameSingleQuery(
-//                                            "MY" + new String(new byte[] { (byte) 0xff, (byte) 0xfe }));
-//                                    if (bytes == null || bytes.length > 0) {
-//                                        log.warn("error");
-//                                        should_reconnect = true;
-//                                        continue;
-//                                    }
-//                                    log.warn("MY address set to fffe");
-//                                }
-
-                                bytes = sendATCommandFrameSingleQuery("MM");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                log.info("mac mode: " + bytesArrayToString(bytes));
-                                if (!bytesArrayToString(bytes).equals("00")) {
-                                    log.warn("bad mac mode (should be digi mode)");
-                                    log.warn("trying to set mac mode to digi");
-                                    bytes = sendATCommandFrameSingleQuery("MM" + new String(new byte[] { 0x00 }));
-                                    if (bytes == null || bytes.length > 0) {
-                                        log.warn("error");
+                                if (module_configs.matches(fingerprint[0], fingerprint[1]))
+                                    log.info("known module " + fingerprint[0] + ", configuration unchanged since "
+                                            + "last verification");
+                                else {
+                                    log.info("module " + fingerprint[0] + " unknown or configuration changed");
+                                    if (!verifyConfiguration()) {
                                         should_reconnect = true;
                                         continue;
                                     }
-                                    log.warn("mac mode set to digi");
+                                    // fingerprint of the configuration actually in use
+                                    final String[] verified = readFingerprint();
+                                    if (verified != null)
+                                        module_configs.store(verified[0], verified[1]);
                                 }
 
-                                bytes = sendATCommandFrameSingleQuery("RN");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                log.info("back-off exponent: " + bytesArrayToString(bytes));
-                                if (!bytesArrayToString(bytes).equals("00")) {
-                                    log.warn("bad back-off exponent");
-                                    log.warn("trying to set back-off exponent to 0");
-                                    log.warn("trying to set mac mode to digi");
-                                    bytes = sendATCommandFrameSingleQuery("RN" + new String(new byte[] { 0x00 }));
-                                    if (bytes == null || bytes.length > 0) {
-                                        log.warn("error");
-                                        should_reconnect = true;
-                                        continue;
-                                    }
-                                    log.warn("back-off exponent set to 0");
-                                }
-
-                                bytes = sendATCommandFrameSingleQuery("RR");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                log.info("retries (in addition to the standard 3 ones): " + bytesArrayToString(bytes));
-                                if (!bytesArrayToString(bytes).equals("00"))
-                                    log.error("bad number of retries (should be 0 in addition to the standard 3 ones)");
-
-                                bytes = sendATCommandFrameSingleQuery("NT");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                log.info("node discovery time: " + (0xff & bytes[0]) * 100 + " ms");
-//                                if ((0xff & bytes[0]) * 100 != 5000) {
-//                                    log.warn("trying to set node discovery time to 5 secs");
-//                                    bytes = sendATCommandFrameSingleQuery("NT" + new String(new byte[] { 0x32 }));
-//                                    if (bytes == null || bytes.length > 0) {
-//                                        log.warn("error");
-//                                        should_reconnect = true;
-//                                        continue;
-//                                    }
-//                                    log.warn("node discovery time set to 5 secs");
-//                                }
-
-                                bytes = sendATCommandFrameSingleQuery("NO");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-//                                if (!bytesArrayToString(bytes).equals("01")) {
-//                                    log.warn("node discovery option: no self response");
-//                                    log.warn("node discovery option: trying to activate self-response");
-//                                    bytes = sendATCommandFrameSingleQuery("NO" + new String(new byte[] { 0x01 }));
-//                                    if (bytes == null || bytes.length > 0) {
-//                                        log.warn("error");
-//                                        should_reconnect = true;
-//                                        continue;
-//                                    }
-//                                    log.warn("node discovery option: self-response activated");
-//                                } else
-//                                    log.info("node discovery option: self response");
-
-                                bytes = sendATCommandFrameSingleQuery("SC");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                if (bytesArrayToString(bytes).equals("1ffe"))
-                                    log.info("every XBee-PRO channels available");
-                                else
-                                    log.warn("some XBee-PRO channels are excluded: " + bytesArrayToString(bytes));
-
-                                bytes = sendATCommandFrameSingleQuery("SD");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                log.info("scan duration exponent: 4 (default value)");
-                                if (!bytesArrayToString(bytes).equals("04"))
-                                    log.warn("warning: scan duration exponent is not set to the default value");
-
-                                // hand set SP, ST and DP (set manual to true to
-                                // activate this block)
-                                boolean manual = true;
-                                if (manual) {
-//                                    log.info("SP=" + bytesArrayToString(sendATCommandFrameSingleQuery("SP")) + "h");
-//                                    bytes = sendATCommandFrameSingleQuery(
-//                                            "SP" + new String(new byte[] { 3, (byte) 0xe8 }, "ISO8859-1"));
-//                                    log.info("SP=" + bytesArrayToString(sendATCommandFrameSingleQuery("SP")) + "h");
-
-//                                    log.info("ST=" + bytesArrayToString(sendATCommandFrameSingleQuery("ST")) + "h");
-//                                    bytes = sendATCommandFrameSingleQuery(
-//                                            "ST" + new String(new byte[] { (byte) 0xea, (byte) 0x60 }, "ISO8859-1"));
-//                                    log.info("ST=" + bytesArrayToString(sendATCommandFrameSingleQuery("ST")) + "h");
-
-//                                    log.info("DP=" + bytesArrayToString(sendATCommandFrameSingleQuery("DP")) + "h");
-//                                    bytes = sendATCommandFrameSingleQuery(
-//                                            "DP" + new String(new byte[] { 3, (byte) 0xe8 }, "ISO8859-1"));
-//                                    log.info("DP=" + bytesArrayToString(sendATCommandFrameSingleQuery("DP")) + "h");
-
-                                }
-
-                                log.info("trying to save configuration");
-                                bytes = sendATCommandFrameSingleQuery("WR");
-                                if (bytes == null) {
-                                    log.warn("error");
-                                    should_reconnect = true;
-                                    continue;
-                                }
-                                log.info("configuration saved");
+                                // the coordinator holds the frames to a sleeping
+                                // end device during 2.5 * SP (10 ms units)
+                                final byte[] sp = sendATCommandFrames("SP")[0];
+                                if (sp != null && sp.length > 0) {
+                                    long sleep_period = 0;
+                                    for (final byte b : sp)
+                                        sleep_period = (sleep_period << 8) | (b & 0xff);
+                                    for (final long address : Tools.parseAddresses(sleepingDevices))
+                                        retry_policy.setSleepPeriod(address, 10 * sleep_period);
+                                } else
+                                    log.warn("error reading SP");
                             }
                         }
                     }
@@ -782,91 +1204,14 @@ System.exit(1);
                 }
 
                 if (should_reconnect == false) {
-                	if (System.currentTimeMillis() - start_buzzer > 500) state_buzzer = false;
-                	
-            		while (serial_reader.getFrameWithApiIdAndAddress(0x97, remoteCommandAddress, 0) != null);
-
-                	XBeeFrame io_frame;
-                	do {
-                		io_frame = serial_reader.getFrameWithApiIdAndAddress(0x82, remoteCommandAddress, 50);
-                		if (io_frame != null) {
-                			// log.debug("frame got: " + io_frame.toString());
-                			// io_frame.content[10] : nombre de samples
-                			// log.debug("samples: XXXXXXXXXXXXXXXXXXXXXX: " + io_frame.content[10]);
-//                			log.info("channel indicator: " + Tools.byteToBinaryString(io_frame.content[11]) + " " + Tools.byteToBinaryString(io_frame.content[12]));  
-                			log.info("DIO: " + Tools.byteToBinaryString(io_frame.content[13]) + " " + Tools.byteToBinaryString(io_frame.content[14]));
-                			button[0] = ((io_frame.content[13] & 1) != 0);
-                			button[1] = ((io_frame.content[14] & (1 << 7)) != 0);
-                			button[2] = ((io_frame.content[14] & (1 << 2)) != 0);
-                			button[3] = ((io_frame.content[14] & (1 << 3)) != 0);
-                			if ((button[0] == true && last_button[0] == false) || (button[1] == true && last_button[1] == false) || (button[2] == true && last_button[2] == false) || (button[3] == true && last_button[3] == false)) {
-                		    	start_buzzer = System.currentTimeMillis();
-                		    	state_buzzer = true;
-                			}
-                			if (button[0] == true && last_button[0] == false) {
-                				final URL url = new URL("http://v.fenyo.net/newweb/cplus/swlights-rc.cgi");
-                				final URLConnection conn = url.openConnection();
-                				conn.connect();
-                				conn.getContent();
-                			}
-                			if (button[1] == true && last_button[1] == false) {
-                				final URL url = new URL("http://v.fenyo.net/newweb/cplus/swlights-rc-haut.cgi");
-                				final URLConnection conn = url.openConnection();
-                				conn.connect();
-                				conn.getContent();
-                			}
+                	long timeout = 1000;
+                	for (final RemoteDevice device : device_registry.getDevices()) {
+                		if (!device.isRemoteCommand()) continue;
+                		final long buzzer_time = System.currentTimeMillis() - device.start_buzzer;
+                		if (buzzer_time > 500) device.getOutputs().set(RemoteOutputs.BUZZER, false);
+                		else if (device.getOutputs().get(RemoteOutputs.BUZZER)) timeout = Math.min(timeout, Math.max(1, 500 - buzzer_time));
+                	}
 
-                			if (button[3] == true && last_button[3] == false) {
-                				final Date date = new Date();
-                				final Calendar calendar = GregorianCalendar.getInstance();
-                				calendar.setTime(date); 
-                				final int h = calendar.get(Calendar.HOUR_OF_DAY);
-                				final URL url;
-                				if (h >= 14 || h < 4) url = new URL("http://v.fenyo.net/newweb/cplus/volets-salon-bas.cgi");
-                				else url = new URL("http://v.fenyo.net/newweb/cplus/volets-salon-haut.cgi");
-                				final URLConnection conn = url.openConnection();
-                				conn.connect();
-                				conn.getContent();
-                			}
-                			if (button[2] == true && last_button[2] == false) {
-                				final URL url;
-                				if (state_led2 == false) url = new URL("http://v.fenyo.net/newweb/cplus/tnt-marantz-fast.cgi");
-                				else url = new URL("http://v.fenyo.net/newweb/cplus/off-marantz-fast.cgi");
-                				final URLConnection conn = url.openConnection();
-                				conn.connect();
-                				conn.getContent();
-                			}
-
-                			last_button[0] = button[0];
-                			last_button[1] = button[1];
-                			last_button[2] = button[2];
-                			last_button[3] = button[3];
-                			
-                			analog[0] = ((255 & io_frame.content[15]) << 8) + (255 & io_frame.content[16]);
-                			analog[1] = ((255 & io_frame.content[17]) << 8) + (255 & io_frame.content[18]);
-                			log.info("analog0/1: " + analog[0] + " - " + analog[1]);
-
-                			if (last_analog[0] != -1 && last_analog[1] != -1) {
-                				for (int i = 0; i < 2; i ++) {
-                					if (Math.abs(analog[i] - last_analog[i]) > 15 && analog[i] != 1023) {
-                						int v = analog[i];
-                						v = 1023 - v;
-                						v = v / 4;
-                						if (v < 1) v =  1;
-                						if (v > 254) v = 254;
-                						final URL url = new URL("http://v.fenyo.net/newweb/cplus/hue-set-bright-" + (i + 2) + ".cgi/" + v);
-                						// log.debug("XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX " + i + " : " + analog[i]);
-                						final URLConnection conn = url.openConnection();
-                						conn.connect();
-                						conn.getContent();
-                					}
-                				}
-                			}
-
-                			if (analog[0] != 1023) last_analog[0] = analog[0];
-                			if (analog[1] != 1023) last_analog[1] = analog[1];
-                		}
-                	} while (io_frame != null);
 
 //                	cnt++;
 //                	if (cnt == 2) {
@@ -878,22 +1223,23 @@ System.exit(1);
 //                		cnt = 0;
 //                	}
 
-                	// apparemment, quand on envoie plusieurs commandes dans la foulée, la première passe bien, et plus on s'éloigne de la première moins ça risque de passer => solution : cette pause de 35 ms entre 2 commandes
-                	long wait = 35;
-                	final long dst_addr_high = Long.decode("0x" + remoteCommandAddress.substring(0, 8));
-                	final long dst_addr_low = Long.decode("0x" + remoteCommandAddress.substring(8));
-                	sendRemoteATCommandFrameSingleQueryAck(dst_addr_high, dst_addr_low, "D6" + new String(new byte[] { (byte) (state_buzzer ? 5 : 4) }), false);
-                	Thread.sleep(wait);
-                	sendRemoteATCommandFrameSingleQueryAck(dst_addr_high, dst_addr_low, "D4" + new String(new byte[] { (byte) (state_led0 ? 5 : 4) }), false);
-                	Thread.sleep(wait);
-                	sendRemoteATCommandFrameSingleQueryAck(dst_addr_high, dst_addr_low, "D5" + new String(new byte[] { (byte) (state_led3 ? 5 : 4) }), false);
-                	Thread.sleep(wait);
-                	final boolean _state_led1 = state_led1;
-                	sendRemoteATCommandFrameSingleQueryAck(dst_addr_high, dst_addr_low, "M0" + new String(new byte[] { (byte) (_state_led1 ? 3 : 0), (byte) (_state_led1 ? 0xff : 0)}), false);
-                	Thread.sleep(wait);
-                	final boolean _state_led2 = state_led2;
-                	sendRemoteATCommandFrameSingleQueryAck(dst_addr_high, dst_addr_low, "M1" + new String(new byte[] { (byte) (_state_led2 ? 3 : 0), (byte) (_state_led2 ? 0xff : 0)}), false);
-                	Thread.sleep(wait);
+                	// apparemment, quand on envoie plusieurs commandes dans la foulée, la première passe bien, et plus on s'éloigne de la première moins ça risque de passer => solution : les commandes sont acquittées et espacées par airtime_scheduler, en fonction des échecs constatés
+                	// seules les sorties modifiées (ou non confirmées depuis reassertPeriod ms) sont envoyées
+                	// les commandes AT distantes en file d'attente sont envoyées une par une pour chaque module
+                	for (final RemoteDevice device : device_registry.getDevices()) {
+                		if (device.isRemoteCommand())
+                			for (int output = 0; output < RemoteOutputs.NB_OUTPUTS; output++) {
+                				final Boolean on = device.getOutputs().take(output);
+                				if (on != null)
+                					applyOutput(device, output, on);
+                			}
+                		final RemoteDevice.Command command = device.takeCommand();
+                		if (command != null)
+                			sendCommand(device, command);
+                	}
+
+                	// les échantillons d'entrées sont traités par le dispatcher dès leur réception : il suffit d'attendre qu'une sortie doive être envoyée, ou la fin du buzzer
+                	device_registry.awaitPending(timeout);
                 }
 
             }
@@ -1,361 +1,240 @@
-package net.fenyo.xbee.serial;
-
-import java.io.*;
-import java.util.*;
-import org.apache.commons.lang3.*;
-
-public class SerialReader extends ThreadHandler {
-	private InputStream stream;
-
-	private List<Byte> input_buffer = new ArrayList<Byte>();
-	private final StringBuffer outside_frame = new StringBuffer();
-	private final List<XBeeFrame> frames = new ArrayList<XBeeFrame>();
-	private long frame_start_time = 0;
-
-	public String getData() {
-		synchronized (outside_frame) {
-			final String retval = outside_frame.toString();
-			outside_frame.setLength(0);
-			return retval;
-		}
-	}
-
-	public XBeeFrame getFrameWithId(final int id) throws InterruptedException {
-		return getFrameWithId(id, 10000);
-	}
-
-	public XBeeFrame getFrameWithId(final int id, final long timeout) throws InterruptedException {
-		final long now = System.currentTimeMillis();
-		synchronized (frames) {
-			do {
-				for (final XBeeFrame frame : frames)
-					if (frame.getId() == id) {
-						frames.remove(frame);
-						return frame;
-					}
-				final long delay = now + timeout - System.currentTimeMillis();
-				if (delay > 0)
-					frames.wait(delay);
-			} while (now + timeout > System.currentTimeMillis());
-		}
-		return null;
-	}
-
-	public XBeeFrame getFrameWithAddress(final String address, final long timeout)
-			throws InterruptedException, UnsupportedEncodingException {
-		final long now = System.currentTimeMillis();
-		synchronized (frames) {
-			do {
-				for (final XBeeFrame frame : frames)
-					if (frame.getAddress() != null && frame.getAddress().equals(address)) {
-						frames.remove(frame);
-						return frame;
-					}
-				final long delay = now + timeout - System.currentTimeMillis();
-				if (delay > 0)
-					frames.wait(delay);
-			} while (now + timeout > System.currentTimeMillis());
-		}
-		return null;
-	}
-
-	public XBeeFrame getFrameWithApiIdAndAddress(final int api_id, final String address, final long timeout)
-			throws InterruptedException, UnsupportedEncodingException {
-		final long now = System.currentTimeMillis();
-		synchronized (frames) {
-			do {
-				for (final XBeeFrame frame : frames)
-					if (frame.getApiId() == api_id && frame.getAddress() != null && frame.getAddress().equals(address)) {
-						frames.remove(frame);
-						return frame;
-					}
-				final long delay = now + timeout - System.currentTimeMillis();
-				if (delay > 0)
-					frames.wait(delay);
-			} while (now + timeout > System.currentTimeMillis());
-		}
-		return null;
-	}
-
-	public void removeOldFramesWithId(final int id) {
-		boolean removed;
-		do {
-			removed = false;
-			synchronized (frames) {
-				for (final XBeeFrame frame : frames)
-					if (frame.getId() == id) {
-						frames.remove(frame);
-						removed = true;
-						log.error("removed frame with old id " + id);
-						break;
-					}
-			}
-		} while (removed == true);
-	}
-
-	// never call waitForData from 2 separate threads at the same time
-	// (SerialPortHandler, the only caller to waitForData(), MUST follow this
-	// rule)
-	public String waitForData(final String data, long timeout) throws InterruptedException {
-		final long now = System.currentTimeMillis();
-
-		synchronized (outside_frame) {
-			while (true) {
-				int idx;
-				if ((idx = outside_frame.indexOf(data)) == -1) {
-					long delay = now + timeout - System.currentTimeMillis();
-					if (delay > 0)
-						outside_frame.wait(delay);
-					else
-						break;
-				} else {
-					final String retval = outside_frame.substring(0, idx);
-					outside_frame.delete(0, idx + data.length());
-					return retval;
-				}
-			}
-		}
-
-		return null;
-	}
-
-	private void handleBytes() {
-		// remove XON-XOFF
-		int pos;
-		while ((pos = input_buffer.indexOf(0x11)) != -1) {
-			log.error("XON at position " + pos);
-			input_buffer.remove(pos);
-		}
-		while ((pos = input_buffer.indexOf(0x13)) != -1) {
-			log.error("XOFF at position " + pos);
-			input_buffer.remove(pos);
-		}
-
-		while (!input_buffer.isEmpty()) {
-			if (input_buffer.get(0) != 0x7e) {
-				final byte b = input_buffer.get(0);
-				input_buffer.remove(0);
-				try {
-					synchronized (outside_frame) {
-						outside_frame.append(new String(new byte[] { b }, "ISO8859-1").charAt(0));
-						outside_frame.notifyAll();
-					}
-				} catch (final UnsupportedEncodingException e) {
-					log.error("invalid byte read " + b, e);
-				}
-
-			} else {
-
-				boolean full_frame = false;
-
-				int loc = 1;
-				final List<Byte> unescaped_bytes = new ArrayList<Byte>(); // w/o
-																			// escaped
-																			// bytes
-				handle_frame: {
-					unescaped_bytes.add((byte) 0x7e);
-
-					int msb = -1;
-					int lsb = -1;
-					int size;
-
-					// get msb
-					if (loc >= input_buffer.size())
-						break handle_frame;
-					if (input_buffer.get(loc) != 0x7d)
-						msb = 0xff & input_buffer.get(loc++);
-					else if (++loc >= input_buffer.size())
-						break handle_frame;
-					else
-						msb = (0xff & input_buffer.get(loc++)) ^ 0x20;
-
-					// get lsb
-					if (loc >= input_buffer.size())
-						break handle_frame;
-					if (input_buffer.get(loc) != 0x7d)
-						lsb = 0xff & input_buffer.get(loc++);
-					else if (++loc >= input_buffer.size())
-						break handle_frame;
-					else
-						lsb = (0xff & input_buffer.get(loc++)) ^ 0x20;
-
-					unescaped_bytes.add((byte) msb);
-					unescaped_bytes.add((byte) lsb);
-
-					// compute unescaped frame size including start delimiter
-					// and checksum
-					size = (msb << 8) + lsb + 4;
-
-					while (loc < input_buffer.size() && unescaped_bytes.size() < size)
-						if (input_buffer.get(loc) == 0x7d) {
-							if (loc + 1 >= input_buffer.size())
-								break handle_frame;
-							unescaped_bytes.add((byte) ((0xff & input_buffer.get(loc + 1)) ^ 0x20));
-							loc += 2;
-						} else
-							unescaped_bytes.add(input_buffer.get(loc++));
-
-					if (unescaped_bytes.size() == size)
-						full_frame = true;
-				}
-
-				if (!full_frame) {
-					// partial frame
-					if (System.currentTimeMillis() - frame_start_time > 5000) {
-						// partial frame delim received more than 5 sec ago
-						log.error("removing partial frame: (timeout: " + (System.currentTimeMillis() - frame_start_time)
-								+ " - frame start time: " + frame_start_time + ")");
-						for (final byte b : input_buffer)
-							log.error("byte: " + Integer.toHexString(b & 0xff) + "h" + " " + (b & 0xff) + "d ('"
-									+ (char) b + "')");
-						input_buffer.clear();
-						frame_start_time = 0;
-						// the method will return since input_buffer is now
-						// cleared (see 'while' loop condition)
-					}
-					return; // return since need more bytes to have a full frame
-				} else {
-					// at least one full frame in input_buffer
-					input_buffer.subList(0, loc).clear();
-					// log.debug("received 1 full frame");
-
-					// check checksum
-					int cksum = 0;
-					for (int i = 3; i < unescaped_bytes.size() - 1; i++)
-						cksum += unescaped_bytes.get(i);
-					cksum = 0xff - (cksum & 0xff);
-					if (cksum != (0xff & unescaped_bytes.get(unescaped_bytes.size() - 1))) {
-						log.error("invalid checksum");
-						return;
-					}
-
-					// store new received frame
-					if (unescaped_bytes.size() < 5) {
-						log.error("short frame");
-						return;
-					}
-					final int api_id = 0xff & unescaped_bytes.get(3);
-
-					int frame_id = -1;
-					// initialized array must be sorted to make a binarySearch
-					if (Arrays.binarySearch(new int[] { 0x00, 0x01, 0x08, 0x09, 0x17, 0x88, 0x89, 0x97 },
-							api_id) >= 0) {
-						// frame has a frame id
-						if (unescaped_bytes.size() < 6) {
-							log.error("short frame");
-							return;
-						}
-						frame_id = 0xff & unescaped_bytes.get(4);
-					}
-
-					final XBeeFrame frame = new XBeeFrame(api_id, frame_id, ArrayUtils.toPrimitive(unescaped_bytes
-							.subList(frame_id == -1 ? 4 : 5, unescaped_bytes.size() - 1).toArray(new Byte[] {})));
-					log.debug("frame id: " + Integer.toHexString(api_id));
-
-					if (api_id == 0x8a) {
-						// modem status
-						try {
-							final int status = 0xff & frame.getRawContent()[4];
-							switch (status) {
-							case 0:
-								log.warn("status frame: HARDWARE RESET");
-								break;
-
-							case 1:
-								log.warn("status frame: WATCHDOG TIMER RESET");
-								break;
-
-							case 2:
-								log.warn("status frame: ASSOCIATED");
-								break;
-
-							case 3:
-								log.warn("status frame: DISASSOCIATED");
-								break;
-
-							case 4:
-								log.warn("status frame: SYNCHRONIZATION LOST");
-								break;
-
-							case 5:
-								log.warn("status frame: COORDINATOR REALIGNMENT");
-								break;
-
-							case 6:
-								log.warn("status frame: COORDINATOR STARTED");
-								break;
-
-							default:
-								log.warn("status frame: invalid status " + status);
-								break;
-							}
-						} catch (final UnsupportedEncodingException e) {
-							log.error("invalid status frame");
-						}
-					} else
-						synchronized (frames) {
-							frames.add(frame);
-							// afficher les frames reçues
-							// log.debug(frame);
-							frames.notifyAll();
-						}
-					// WARNING : Integer a = 0x1; Byte b = 0x1; a.equals(b) is
-					// FALSE => input_buffer.contains((byte) 0x7e) !=
-					// input_buffer.contains(0x7e)
-					frame_start_time = input_buffer.contains((byte) 0x7e) ? System.currentTimeMillis() : 0;
-				}
-			}
-		}
-	}
-
-	@Override
-	public void run() {
-		final byte[] tmp_bytes = new byte[1024];
-
-		try {
-			stream = getSocket().getInputStream();
-		} catch (final IOException e) {
-			log.warn(e);
-			errorOccured();
-			return;
-		}
-
-		while (true) {
-			if (getError())
-				return;
-
-			final int nbytes;
-			try {
-				nbytes = stream.read(tmp_bytes);
-			} catch (final IOException ex) {
-				log.warn(ex);
-				errorOccured();
-				return;
-			}
-			if (nbytes == -1) {
-				// EOF
-				errorOccured();
-				return;
-			}
-
-			log.debug("read " + nbytes + " nbytes");
-			for (int i = 0; i < nbytes; i++) {
-				/*
-				 * try { log.debug("read byte[" + i + "] = " +
-				 * Integer.toHexString(0xff & tmp_bytes[i]) + " - char='" + new
-				 * String(new byte[] { tmp_bytes[i] }, "ASCII") + "'"); } catch
-				 * (final UnsupportedEncodingException e) { log.error(e); }
-				 */
-				input_buffer.add(tmp_bytes[i]);
-				if (tmp_bytes[i] == 0x7e && frame_start_time == 0)
-					frame_start_time = System.currentTimeMillis();
-			}
-
-			handleBytes();
-		}
-	}
-
-	public SerialReader() {
-		super();
-	}
-}
+package net.fenyo.xbee.serial;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import net.fenyo.xbee.metrics.*;
+import org.springframework.util.concurrent.*;
+
+public class SerialReader extends LinkHandler implements FrameDecoder.Listener {
+	private final FrameDecoder decoder = new FrameDecoder(this);
+	private final ResponseTable responses;
+	// indexed by api id
+	private final AtomicReferenceArray<Subscriptions> subscriptions = new AtomicReferenceArray<Subscriptions>(256);
+
+	private static class Subscription {
+		final FrameListener listener;
+		final Executor executor;
+
+		Subscription(final FrameListener listener, final Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+
+	// immutable, replaced at each subscription: the source address of a frame
+	// is looked up with a binary search, without locking
+	private static class Subscriptions {
+		static final Subscription[] NONE = new Subscription[0];
+		static final Subscriptions EMPTY = new Subscriptions(new long[0], new Subscription[0][], NONE);
+
+		final long[] addresses; // sorted
+		final Subscription[][] by_address;
+		final Subscription[] any; // frames from any source
+
+		Subscriptions(final long[] addresses, final Subscription[][] by_address, final Subscription[] any) {
+			this.addresses = addresses;
+			this.by_address = by_address;
+			this.any = any;
+		}
+
+		Subscription[] get(final XBeeFrame frame) {
+			if (!frame.hasAddress())
+				return NONE;
+			final int idx = Arrays.binarySearch(addresses, frame.getSourceAddress());
+			return idx >= 0 ? by_address[idx] : NONE;
+		}
+
+		static Subscription[] add(final Subscription[] list, final Subscription subscription) {
+			final Subscription[] retval = Arrays.copyOf(list, list.length + 1);
+			retval[list.length] = subscription;
+			return retval;
+		}
+
+		Subscriptions add(final long address, final Subscription subscription) {
+			int idx = Arrays.binarySearch(addresses, address);
+			if (idx >= 0) {
+				final Subscription[][] new_by_address = by_address.clone();
+				new_by_address[idx] = add(by_address[idx], subscription);
+				return new Subscriptions(addresses, new_by_address, any);
+			}
+			idx = -idx - 1;
+			final long[] new_addresses = new long[addresses.length + 1];
+			final Subscription[][] new_by_address = new Subscription[addresses.length + 1][];
+			System.arraycopy(addresses, 0, new_addresses, 0, idx);
+			System.arraycopy(by_address, 0, new_by_address, 0, idx);
+			new_addresses[idx] = address;
+			new_by_address[idx] = new Subscription[] { subscription };
+			System.arraycopy(addresses, idx, new_addresses, idx + 1, addresses.length - idx);
+			System.arraycopy(by_address, idx, new_by_address, idx + 1, addresses.length - idx);
+			return new Subscriptions(new_addresses, new_by_address, any);
+		}
+
+		Subscriptions addAny(final Subscription subscription) {
+			return new Subscriptions(addresses, by_address, add(any, subscription));
+		}
+	}
+
+	private Subscriptions getSubscriptions(final int api_id) {
+		final Subscriptions retval = subscriptions.get(api_id);
+		return retval != null ? retval : Subscriptions.EMPTY;
+	}
+
+	// frames matching api_id and the 64 bit source address are pushed to
+	// listener, on executor, as soon as they are decoded, instead of being
+	// stored
+	public synchronized void subscribe(final int api_id, final long address, final FrameListener listener,
+			final Executor executor) {
+		subscriptions.set(api_id, getSubscriptions(api_id).add(address, new Subscription(listener, executor)));
+	}
+
+	// frames matching api_id, from any source
+	public synchronized void subscribe(final int api_id, final FrameListener listener, final Executor executor) {
+		subscriptions.set(api_id, getSubscriptions(api_id).addAny(new Subscription(listener, executor)));
+	}
+
+	private static boolean dispatch(final XBeeFrame frame, final Subscription[] list) {
+		for (final Subscription subscription : list)
+			subscription.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					subscription.listener.frameReceived(frame);
+				}
+			});
+		return list.length > 0;
+	}
+
+	private boolean dispatch(final XBeeFrame frame) {
+		final Subscriptions list = subscriptions.get(frame.getApiId());
+		if (list == null)
+			return false;
+		return dispatch(frame, list.get(frame)) | dispatch(frame, list.any);
+	}
+
+	private final OutsideFrameBuffer outside_frame = new OutsideFrameBuffer();
+	// unclaimed frames: at most 32 per API id, for 30 s
+	private final FrameStore frames = new FrameStore(32, 30000);
+
+	public String getData() {
+		return outside_frame.clear();
+	}
+
+	// must be called before sending a frame with this id, so that its response
+	// can not be missed
+	// the future is completed with a null frame on timeout, and fails with a
+	// ClosedChannelException on disconnection
+	public ListenableFuture<XBeeFrame> expectFrameWithId(final int id, final long timeout) {
+		return responses.expect(id, timeout);
+	}
+
+	// same, but the timeout starts with startResponseTimeout(), once the frame
+	// is written
+	public ListenableFuture<XBeeFrame> expectFrameWithId(final int id) {
+		return responses.expect(id);
+	}
+
+	public void startResponseTimeout(final int id, final ListenableFuture<XBeeFrame> response, final long timeout) {
+		responses.startTimeout(id, response, timeout);
+	}
+
+	public boolean isFrameIdPending(final int id) {
+		return responses.isPending(id);
+	}
+
+	public XBeeFrame getFrameWithAddress(final long address, final long timeout) throws InterruptedException {
+		return frames.take(-1, address, timeout);
+	}
+
+	public XBeeFrame getFrameWithApiIdAndAddress(final int api_id, final long address, final long timeout)
+			throws InterruptedException {
+		return frames.take(api_id, address, timeout);
+	}
+
+	// never call waitForData from 2 separate threads at the same time
+	// (SerialPortHandler, the only caller to waitForData(), MUST follow this
+	// rule)
+	public String waitForData(final String data, final long timeout) throws InterruptedException {
+		return outside_frame.await(data, timeout);
+	}
+
+	// threads: SerialEventLoop
+	@Override
+	public void frameDecoded(final XBeeFrame frame) {
+		if (frame.getApiId() == 0x8a) {
+			// modem status
+			try {
+				final int status = 0xff & frame.getRawContent()[4];
+				switch (status) {
+				case 0:
+					log.warn("status frame: HARDWARE RESET");
+					break;
+
+				case 1:
+					log.warn("status frame: WATCHDOG TIMER RESET");
+					break;
+
+				case 2:
+					log.warn("status frame: ASSOCIATED");
+					break;
+
+				case 3:
+					log.warn("status frame: DISASSOCIATED");
+					break;
+
+				case 4:
+					log.warn("status frame: SYNCHRONIZATION LOST");
+					break;
+
+				case 5:
+					log.warn("status frame: COORDINATOR REALIGNMENT");
+					break;
+
+				case 6:
+					log.warn("status frame: COORDINATOR STARTED");
+					break;
+
+				default:
+					log.warn("status frame: invalid status " + status);
+					break;
+				}
+			} catch (final UnsupportedEncodingException e) {
+				log.error("invalid status frame");
+			}
+		} else if (responses.complete(frame)) {
+			// the requester has been woken up
+		} else if (dispatch(frame)) {
+			// pushed to the subscribers
+		} else if (frame.getId() > 0) {
+			// nobody is waiting anymore for this response (timeout)
+			Metrics.LATE_RESPONSES.increment();
+			log.warn("unexpected response with id " + frame.getId());
+		} else {
+			// afficher les frames reçues
+			// log.debug(frame);
+			frames.add(frame);
+		}
+	}
+
+	// threads: SerialEventLoop
+	@Override
+	public void outsideFrame(final byte[] bytes, final int offset, final int length) {
+		outside_frame.append(bytes, offset, length);
+	}
+
+	// threads: SerialEventLoop
+	void received(final byte[] bytes, final int offset, final int count) {
+		log.debug("read " + count + " nbytes");
+		decoder.decode(bytes, offset, count);
+	}
+
+	// wake up the requesters still waiting for a response
+	void linkDown() {
+		responses.cancelAll();
+	}
+
+	public SerialReader(final SerialLink link, final ScheduledExecutorService timer) {
+		super(link);
+		responses = new ResponseTable(timer);
+	}
+}
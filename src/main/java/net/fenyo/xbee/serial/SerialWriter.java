@@ -1,62 +1,130 @@
 package net.fenyo.xbee.serial;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import net.fenyo.xbee.metrics.*;
 
-public class SerialWriter extends ThreadHandler {
-    private OutputStream stream;
+public class SerialWriter extends LinkHandler {
+    // multiple producers (tomcat, SerialPortHandler), single consumer
+    // (SerialEventLoop)
+    private final Queue<XBeeData> data = new ConcurrentLinkedQueue<XBeeData>();
+    // set when the event loop has been woken up and has not drained data yet
+    private final AtomicBoolean wakeup_requested = new AtomicBoolean(false);
+    // number of items in data (ConcurrentLinkedQueue.size() is not a constant
+    // time operation)
+    private final AtomicInteger queue_depth = new AtomicInteger(0);
+
+    // threads: SerialEventLoop
+    // frames are encoded straight into this buffer, reused for every write
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+    private ByteBuffer output = null;
+    private XBeeData next = null; // dequeued but not written yet
+    private boolean next_guarded = false; // guard time before next is set
+    private long wait_after = 0; // guard time after the current output
+    private long not_before = 0;
+
+    public SerialWriter(final SerialLink link) {
+        super(link);
+    }
+
+    private void enqueue(final XBeeData xbee_data) {
+        queue_depth.incrementAndGet();
+        data.add(xbee_data);
+        if (wakeup_requested.compareAndSet(false, true))
+            getLink().wakeup();
+    }
 
     public void sendATCommand(final XBeeATCommand command) throws IOException, InterruptedException {
-        synchronized (data) {
-            data.add(command);
-            data.notify();
-        }
+        enqueue(command);
     }
 
     public void sendFrame(final XBeeFrame frame) throws IOException, InterruptedException {
-        synchronized (data) {
-            data.add(frame);
-            data.notify();
-        }
+        enqueue(frame);
+    }
+
+    public int getQueueDepth() {
+        return queue_depth.get();
+    }
+
+    // threads: SerialEventLoop
+    private XBeeData poll() {
+        final XBeeData xbee_data = data.poll();
+        if (xbee_data != null)
+            queue_depth.decrementAndGet();
+        return xbee_data;
+    }
+
+    // threads: SerialEventLoop
+    boolean hasPendingOutput() {
+        return output != null;
     }
 
-    @Override
-    public void run() {
-        try {
-            stream = getSocket().getOutputStream();
-
-            while (true) {
-                if (getError())
-                    return;
-                XBeeData xbee_data = null;
-                synchronized (data) {
-                    if (data.isEmpty())
-                        data.wait();
-                    if (!data.isEmpty()) {
-                        xbee_data = data.get(0);
-                        data.remove(0);
-                    }
+    // threads: SerialEventLoop
+    // write as much queued data as the channel accepts, honouring guard times:
+    // consecutive items that do not need a guard time are coalesced into a
+    // single write
+    // returns the end of the guard time to wait for, or 0
+    long write(final WritableByteChannel channel) throws IOException {
+        while (true) {
+            if (output != null) {
+                final int start = output.position();
+                channel.write(output);
+                final LinkCapture capture = getLink().getCapture();
+                if (capture != null)
+                    capture.record(LinkCapture.SENT, output, start, output.position());
+                if (output.hasRemaining())
+                    // wait for the channel to become writable
+                    return 0;
+                if (output == buffer)
+                    buffer.clear();
+                output = null;
+                if (wait_after != 0) {
+                    not_before = System.currentTimeMillis() + wait_after;
+                    wait_after = 0;
                 }
+            }
 
-                if (xbee_data != null) {
-                    if (xbee_data.waitBeforeWrite() != 0)
-                        Thread.sleep(xbee_data.waitBeforeWrite());
+            wakeup_requested.set(false);
+            if (next == null && (next = poll()) == null)
+                return 0;
 
-                    log.debug("write " + xbee_data.getRawContent().length + " bytes");
-//                    for (int i = 0; i < xbee_data.getRawContent().length; i++)
-//                        log.debug("write byte: " + Integer.toHexString(0xff & xbee_data.getRawContent()[i])
-//                                + " - char='" + new String(new byte[] { xbee_data.getRawContent()[i] }, "ASCII") + "'");
+            final long now = System.currentTimeMillis();
+            if (!next_guarded) {
+                if (next.waitBeforeWrite() != 0)
+                    not_before = Math.max(not_before, now + next.waitBeforeWrite());
+                next_guarded = true;
+            }
+            if (now < not_before)
+                return not_before;
 
-                    stream.write(xbee_data.getRawContent());
-                    if (xbee_data.waitAfterWrite() != 0)
-                        Thread.sleep(xbee_data.waitAfterWrite());
+            int nitems = 0;
+            do {
+                if (nitems > 0 && next.waitBeforeWrite() != 0)
+                    break;
+                if (!next.encode(buffer)) {
+                    if (nitems > 0)
+                        // write the current batch first
+                        break;
+                    // larger than the pooled buffer
+                    output = ByteBuffer.wrap(next.getRawContent());
+                }
+                nitems++;
+                if (next instanceof XBeeFrame)
+                    Metrics.FRAMES_SENT.increment(((XBeeFrame) next).getApiId());
+                wait_after = next.waitAfterWrite();
+                next = poll();
+                next_guarded = false;
+            } while (wait_after == 0 && next != null && output == null);
 
-                } else
-                    log.warn("wake-up for data but data is null");
+            if (output == null) {
+                buffer.flip();
+                output = buffer;
             }
-        } catch (final IOException | InterruptedException e) {
-            log.warn(e);
-            errorOccured();
-            return;
+            log.debug("write " + output.remaining() + " bytes (" + nitems + " items)");
         }
     }
 }
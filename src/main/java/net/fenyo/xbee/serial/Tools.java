@@ -9,4 +9,27 @@ public class Tools {
 		return retval;
 	}
 
+	// 64 bit address, written as up to 16 hex digits with an optional 0x prefix
+	// (Long.parseLong() can not parse addresses with the high bit set)
+	public static long parseAddress(final String address) {
+		String s = address.trim();
+		if (s.startsWith("0x") || s.startsWith("0X")) s = s.substring(2);
+		if (s.length() == 0 || s.length() > 16) throw new NumberFormatException("invalid address: " + address);
+		if (s.length() <= 8) return Long.parseLong(s, 16);
+		return (Long.parseLong(s.substring(0, s.length() - 8), 16) << 32) | Long.parseLong(s.substring(s.length() - 8), 16);
+	}
+
+	// comma separated list of addresses
+	public static long[] parseAddresses(final String addresses) {
+		if (addresses == null || addresses.trim().length() == 0) return new long[0];
+		final String[] items = addresses.split(",");
+		final long[] retval = new long[items.length];
+		for (int i = 0; i < items.length; i++) retval[i] = parseAddress(items[i]);
+		return retval;
+	}
+
+	public static String addressToString(final long address) {
+		final String s = Long.toHexString(address);
+		return "0000000000000000".substring(s.length()) + s;
+	}
 }
\ No newline at end of file
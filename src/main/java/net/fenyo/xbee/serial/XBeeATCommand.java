@@ -1,6 +1,7 @@
 package net.fenyo.xbee.serial;
 
 import java.io.*;
+import java.nio.*;
 
 public class XBeeATCommand extends XBeeData {
     private final String command;
@@ -30,6 +31,17 @@ public class XBeeATCommand extends XBeeData {
         return command.getBytes("ISO8859-1");
     }
 
+    public boolean encode(final ByteBuffer buffer) {
+        if (buffer.remaining() < command.length())
+            return false;
+        // ISO8859-1
+        for (int i = 0; i < command.length(); i++) {
+            final char c = command.charAt(i);
+            buffer.put((byte) (c <= 0xff ? c : '?'));
+        }
+        return true;
+    }
+
     public String getEndOfData() {
         return end_of_data;
     }
@@ -1,6 +1,7 @@
 package net.fenyo.xbee.serial;
 
 import java.io.*;
+import java.nio.*;
 import org.apache.commons.logging.*;
 
 public abstract class XBeeData {
@@ -8,6 +9,10 @@ public abstract class XBeeData {
 
     public abstract byte[] getRawContent() throws UnsupportedEncodingException;
 
+    // writes the raw content into buffer, without any allocation
+    // returns false, leaving the buffer untouched, if it may not fit
+    public abstract boolean encode(final ByteBuffer buffer);
+
     public long waitBeforeWrite() {
         return 0;
     }
@@ -1,6 +1,7 @@
 package net.fenyo.xbee.serial;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 import org.apache.commons.lang3.*;
 
@@ -9,19 +10,28 @@ public class XBeeFrame extends XBeeData {
     final int frame_id;
     final byte[] content;
 
+    // 64 bit source address, decoded once when the frame is built
+    private final boolean has_address;
+    private final long address;
+
     public byte[] getContent() {
         return content;
     }
 
-    public String getAddress() throws UnsupportedEncodingException {
-        if (api_id != 0x80 && api_id != 0x82)
-            return null;
-        String address = "";
-        for (final byte b : ArrayUtils.subarray(content, 0, 8))
-            address += ((b & 0xff) < 16 ? "0" : "") + Integer.toHexString(b & 0xff);
+    public boolean hasAddress() {
+        return has_address;
+    }
+
+    // only meaningful if hasAddress() is true
+    public long getSourceAddress() {
         return address;
     }
 
+    // for logging and display only
+    public String getAddress() {
+        return has_address ? Tools.addressToString(address) : null;
+    }
+
     public String getReceivedData() throws UnsupportedEncodingException {
         if (api_id != 0x80)
             return null;
@@ -31,37 +41,48 @@ public class XBeeFrame extends XBeeData {
         return msg;
     }
 
-    public byte[] getRawContent() throws UnsupportedEncodingException {
-        final List<Byte> raw_content = new ArrayList<Byte>();
-
-        final int len = 1
-                /* api id */ + ((frame_id == -1) ? 0 : 1) /* frame id */ + content.length;
-        raw_content.add((byte) (len >> 8)); // msb
-        raw_content.add((byte) (len & 0xff)); // lsb
-        raw_content.add((byte) api_id);
-        if (frame_id != -1)
-            raw_content.add((byte) frame_id);
-        raw_content.addAll(Arrays.asList(ArrayUtils.toObject(content)));
-
-        // compute checksum
-        int cksum = api_id + frame_id;
-        for (final byte b : content)
+    // size of the frame if every byte but the start delimiter was escaped
+    public int getMaxEncodedLength() {
+        return 1 /* start delimiter */ + 2 * (2 /* length */ + 1 /* api id */ + ((frame_id == -1) ? 0 : 1)
+                /* frame id */ + content.length + 1 /* checksum */);
+    }
+
+    private static void putEscaped(final ByteBuffer buffer, final int b) {
+        if (b == 0x7e || b == 0x7d || b == 0x11 || b == 0x13) {
+            buffer.put((byte) 0x7d);
+            buffer.put((byte) (b ^ 0x20));
+        } else
+            buffer.put((byte) b);
+    }
+
+    // API mode 2 frame (escaped control characters): length, checksum and
+    // escaping are computed in a single pass
+    public boolean encode(final ByteBuffer buffer) {
+        if (buffer.remaining() < getMaxEncodedLength())
+            return false;
+
+        final int len = 1 /* api id */ + ((frame_id == -1) ? 0 : 1) /* frame id */ + content.length;
+        buffer.put((byte) 0x7e); // start delimiter
+        putEscaped(buffer, len >> 8); // msb
+        putEscaped(buffer, len & 0xff); // lsb
+        putEscaped(buffer, api_id);
+        int cksum = api_id;
+        if (frame_id != -1) {
+            putEscaped(buffer, frame_id);
+            cksum += frame_id;
+        }
+        for (final byte b : content) {
+            putEscaped(buffer, b & 0xff);
             cksum += b;
-        cksum = 0xff - (cksum & 0xff);
-        raw_content.add((byte) cksum);
-
-        final List<Byte> escaped_raw_content = new ArrayList<Byte>();
-        for (final byte b : raw_content)
-            // initialized array must be sorted to make a binarySearch
-            if (Arrays.binarySearch(new byte[] { 0x11, 0x13, 0x7d, 0x7e }, b) < 0)
-                escaped_raw_content.add(b);
-            else {
-                escaped_raw_content.add((byte) 0x7d);
-                escaped_raw_content.add((byte) (b ^ 0x20));
-            }
-        escaped_raw_content.add(0, (byte) 0x7e); // add start delimiter
-
-        return ArrayUtils.toPrimitive(escaped_raw_content.toArray(new Byte[] {}));
+        }
+        putEscaped(buffer, 0xff - (cksum & 0xff));
+        return true;
+    }
+
+    public byte[] getRawContent() throws UnsupportedEncodingException {
+        final ByteBuffer buffer = ByteBuffer.allocate(getMaxEncodedLength());
+        encode(buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
     }
 
     public int getApiId() {
@@ -81,14 +102,20 @@ public class XBeeFrame extends XBeeData {
     }
 
     public XBeeFrame(final int api_id, final byte[] content) {
-        this.api_id = api_id;
-        this.frame_id = -1;
-        this.content = content;
+        this(api_id, -1, content);
     }
 
     public XBeeFrame(final int api_id, final int frame_id, final byte[] content) {
         this.api_id = api_id;
         this.frame_id = frame_id;
         this.content = content;
+
+        // RX packet and IO sample frames with 64 bit addresses
+        has_address = (api_id == 0x80 || api_id == 0x82) && content.length >= 8;
+        long address = 0;
+        if (has_address)
+            for (int i = 0; i < 8; i++)
+                address = (address << 8) | (content[i] & 0xff);
+        this.address = address;
     }
 }
@@ -1,15 +1,21 @@
 package net.fenyo.xbee.web;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
+import net.fenyo.xbee.metrics.*;
 import net.fenyo.xbee.serial.*;
 import org.apache.commons.logging.*;
 import org.springframework.beans.factory.annotation.*;
 import org.springframework.stereotype.*;
+import org.springframework.util.concurrent.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.*;
 import org.springframework.web.servlet.*;
 
 // excellente doc sur les controller : "16.3 Implementing Controllers" de spring-framework-reference.pdf
@@ -20,6 +26,36 @@ public class WebController {
     @Autowired
     private SerialPortHandler serialPortHandler;
 
+    // devices used when the device parameter is missing
+    @Value("${xbee.device.default}")
+    private String defaultDevice;
+
+    @Value("${xbee.device.defaultNoAck}")
+    private String defaultDeviceNoAck;
+
+    // device: 64 bit address in hex, default_device is used if it is missing, or
+    // the first remote command if default_device is null
+    // returns null if the address is invalid or if the device is unknown
+    private Long parseDevice(final String device, final String default_device) {
+        final long address;
+        try {
+            if (device != null)
+                address = Tools.parseAddress(device);
+            else if (default_device != null)
+                address = Tools.parseAddress(default_device);
+            else
+                address = serialPortHandler.getDefaultRemoteCommand();
+        } catch (final NumberFormatException ex) {
+            log.warn("invalid device: " + device);
+            return null;
+        }
+        if (serialPortHandler.getDeviceRegistry().get(address) == null) {
+            log.warn("unknown device: " + Tools.addressToString(address));
+            return null;
+        }
+        return address;
+    }
+
     @RequestMapping("/intro")
     public ModelAndView intro(@RequestParam(value = "statusString", required = false) final String status_string) {
         ModelAndView mav = new ModelAndView();
@@ -48,51 +84,299 @@ public class WebController {
         return mav;
     }
 
-    @RequestMapping("/sendRemoteAT")
-    public ModelAndView sendRemoteAT(@RequestParam(value = "param", required = true) final String param)
-            throws IOException, InterruptedException {
-        ModelAndView mav = new ModelAndView();
+    // deadline of the asynchronous requests when the timeout parameter is
+    // missing
+    private static final long DEFAULT_TIMEOUT = 60000;
+
+    private static ModelAndView status(final String status_string) {
+        final ModelAndView mav = new ModelAndView("display-status");
+        mav.addObject("statusString", status_string);
+        return mav;
+    }
+
+    // the result is set to error when the deadline expires
+    private static DeferredResult<ModelAndView> deferredResult(final Long timeout) {
+        return new DeferredResult<ModelAndView>(timeout != null ? timeout : DEFAULT_TIMEOUT, status("error"));
+    }
+
+    // write a value on a remote node and read it back, retried as allowed by
+    // the retry policy of the node, without blocking any thread: each step is
+    // started by the completion of the previous one (serial reader or timer
+    // thread)
+    private abstract class RemoteATRequest {
+        final long address;
+        final String name; // AT command, without its value
+        final byte[] value;
+        final boolean verify; // read the value back
+        final DeferredResult<?> deadline; // no more attempts once set or expired
+        int retries = 0;
+
+        RemoteATRequest(final long address, final String name, final byte[] value, final boolean verify,
+                final DeferredResult<?> deadline) {
+            this.address = address;
+            this.name = name;
+            this.value = value;
+            this.verify = verify;
+            this.deadline = deadline;
+        }
 
-        boolean done = false;
-        // peut etre passer de 10 à 3 retries, pour les volets d'en bas
-        for (int retries = 0; retries < 10; retries++) {
-            if (retries > 0)
+        // threads: any
+        abstract void done(final boolean success);
+
+        void attempt() {
+            if (deadline.isSetOrExpired()) {
+                // deadline expired
+                done(false);
+                return;
+            }
+            if (retries > 0) {
+                Metrics.REMOTE_AT_RETRIES.increment();
                 log.warn("retry nb " + retries);
-            byte[] ret = serialPortHandler.sendRemoteATCommandFrameSingleQuery(0x13a200, 0x409A960C,
-                    param.substring(0, 2)
-                            + new String(new byte[] { (byte) (param.charAt(2) - new Character('0').charValue()) }));
-
-            if (ret == null)
-                log.warn("timeout sending remote AT command");
-            else {
-                ret = serialPortHandler.sendRemoteATCommandFrameSingleQuery(0x13a200, 0x409A960C,
-                        param.substring(0, 2));
-                if (ret == null || !SerialPortHandler.bytesArrayToString(ret).equals("0" + param.substring(2, 3))) {
-                    log.warn("invalid remote value: "
-                            + (ret != null ? SerialPortHandler.bytesArrayToString(ret) : "null"));
-                } else {
-                    done = true;
-                    log.debug("OK sent and checked");
-                    break;
-                }
             }
+            final String command;
+            try {
+                command = name + new String(value, "ISO8859-1");
+            } catch (final UnsupportedEncodingException ex) {
+                log.error(ex);
+                done(false);
+                return;
+            }
+            serialPortHandler.submitRemoteATCommand(address, command, true)
+                    .addCallback(new ListenableFutureCallback<byte[]>() {
+                        @Override
+                        public void onSuccess(final byte[] ret) {
+                            if (ret == null) {
+                                log.warn("timeout sending remote AT command");
+                                retry();
+                            } else if (verify)
+                                check();
+                            else
+                                done(true);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable ex) {
+                            log.warn(ex);
+                            retry();
+                        }
+                    });
         }
 
-        mav.addObject("statusString", done ? "success" : "error");
-        mav.setViewName("display-status");
-        return mav;
+        void check() {
+            serialPortHandler.submitRemoteATCommand(address, name, true)
+                    .addCallback(new ListenableFutureCallback<byte[]>() {
+                        @Override
+                        public void onSuccess(final byte[] ret) {
+                            if (ret == null || !SerialPortHandler.bytesArrayToString(ret)
+                                    .equals(SerialPortHandler.bytesArrayToString(value))) {
+                                log.warn("invalid remote value: "
+                                        + (ret != null ? SerialPortHandler.bytesArrayToString(ret) : "null"));
+                                retry();
+                            } else {
+                                log.debug("OK sent and checked");
+                                done(true);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable ex) {
+                            log.warn(ex);
+                            retry();
+                        }
+                    });
+        }
+
+        void retry() {
+            final RetryPolicy retry_policy = serialPortHandler.getRetryPolicy();
+            if (!retry_policy.allowRetry(address, ++retries)) {
+                done(false);
+                return;
+            }
+            try {
+                serialPortHandler.retryLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt();
+                    }
+                }, retry_policy.getBackoff(address, retries));
+            } catch (final RejectedExecutionException ex) {
+                // shutting down
+                done(false);
+            }
+        }
+    }
+
+    // the tomcat thread is released at once, the response is sent when the
+    // value has been written and checked, or when timeout ms have elapsed
+    @RequestMapping("/sendRemoteAT")
+    public DeferredResult<ModelAndView> sendRemoteAT(
+            @RequestParam(value = "param", required = true) final String param,
+            @RequestParam(value = "device", required = false) final String device,
+            @RequestParam(value = "timeout", required = false) final Long timeout) {
+        final DeferredResult<ModelAndView> result = deferredResult(timeout);
+        final Long address = parseDevice(device, defaultDevice);
+        if (address == null) {
+            result.setResult(status("error"));
+            return result;
+        }
+        new RemoteATRequest(address, param.substring(0, 2),
+                new byte[] { (byte) (param.charAt(2) - new Character('0').charValue()) }, true, result) {
+            @Override
+            void done(final boolean success) {
+                result.setResult(status(success ? "success" : "error"));
+            }
+        }.attempt();
+        return result;
     }
 
+    // no acknowledgement is requested: the response is success once the
+    // command has been handed to the serial link, error if it has been dropped
+    // (too many pending commands, link down), or error when timeout ms have
+    // elapsed
     @RequestMapping("/sendRemoteATNoAck")
-    public ModelAndView sendRemoteATNoAck(@RequestParam(value = "param", required = true) final String param)
-            throws IOException, InterruptedException {
-        ModelAndView mav = new ModelAndView();
+    public DeferredResult<ModelAndView> sendRemoteATNoAck(
+            @RequestParam(value = "param", required = true) final String param,
+            @RequestParam(value = "device", required = false) final String device,
+            @RequestParam(value = "timeout", required = false) final Long timeout) {
+        final DeferredResult<ModelAndView> result = deferredResult(timeout);
+        final Long address = parseDevice(device, defaultDeviceNoAck);
+        if (address == null) {
+            result.setResult(status("error"));
+            return result;
+        }
+        serialPortHandler.submitRemoteATCommand(address, param.substring(0, 2)
+                + new String(new byte[] { (byte) (param.charAt(2) - new Character('0').charValue()) }), false)
+                .addCallback(new ListenableFutureCallback<byte[]>() {
+                    @Override
+                    public void onSuccess(final byte[] value) {
+                        result.setResult(status("success"));
+                    }
 
-        serialPortHandler.sendRemoteATCommandFrameSingleQueryAck(0x13a200, 0x409b7abb, param.substring(0, 2)
-                + new String(new byte[] { (byte) (param.charAt(2) - new Character('0').charValue()) }), false);
-        mav.addObject("statusString", "success");
-        mav.setViewName("display-status");
-        return mav;
+                    @Override
+                    public void onFailure(final Throwable ex) {
+                        log.warn(ex);
+                        result.setResult(status("error"));
+                    }
+                });
+        return result;
+    }
+
+    // one remote value to write in a batch
+    private class BatchItem extends RemoteATRequest {
+        final int index;
+        final BatchItem next; // next item for the same device
+        final AtomicReferenceArray<String> statuses;
+        final AtomicInteger remaining;
+        final Runnable completed; // called when every item is done
+
+        BatchItem(final int index, final long address, final String name, final byte[] value, final boolean verify,
+                final BatchItem next, final AtomicReferenceArray<String> statuses, final AtomicInteger remaining,
+                final DeferredResult<String> result, final Runnable completed) {
+            super(address, name, value, verify, result);
+            this.index = index;
+            this.next = next;
+            this.statuses = statuses;
+            this.remaining = remaining;
+            this.completed = completed;
+        }
+
+        @Override
+        void done(final boolean success) {
+            statuses.compareAndSet(index, null, success ? "success" : "error");
+            // the items of a device are run in order, the devices in parallel
+            if (next != null)
+                next.attempt();
+            if (remaining.decrementAndGet() == 0)
+                completed.run();
+        }
+    }
+
+    // value in hex, null if invalid
+    private static byte[] parseValue(final String hex) {
+        if (hex.length() == 0)
+            return null;
+        final String digits = hex.length() % 2 == 0 ? hex : "0" + hex;
+        final byte[] value = new byte[digits.length() / 2];
+        try {
+            for (int i = 0; i < value.length; i++)
+                value[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        } catch (final NumberFormatException ex) {
+            return null;
+        }
+        return value;
+    }
+
+    private static String batchReport(final List<String> items, final AtomicReferenceArray<String> statuses) {
+        final StringBuilder report = new StringBuilder();
+        for (int i = 0; i < items.size(); i++) {
+            final String status = statuses.get(i);
+            report.append(i).append(' ').append(items.get(i)).append(' ').append(status != null ? status : "timeout")
+                    .append('\n');
+        }
+        return report.toString();
+    }
+
+    // scene: several remote values written at once
+    // item: device,command,value[,verify] (value in hex, verify 0 or 1,
+    // default 1), e.g. item=0013a200409a960c,D4,05&item=0013a200409b7abb,D4,04,0
+    // the items are pipelined: each device runs its items in order, with the
+    // airtime pacing of SerialPortHandler, while the devices are handled in
+    // parallel
+    // the response has one line per item: index, item and status (success,
+    // error or timeout), it is sent when every item is done or when timeout ms
+    // have elapsed
+    @RequestMapping(value = "/sendRemoteATBatch", produces = "text/plain")
+    @ResponseBody
+    public DeferredResult<String> sendRemoteATBatch(
+            @RequestParam(value = "item", required = true) final List<String> items,
+            @RequestParam(value = "timeout", required = false) final Long timeout) {
+        final DeferredResult<String> result = new DeferredResult<String>(timeout != null ? timeout : DEFAULT_TIMEOUT);
+        final AtomicReferenceArray<String> statuses = new AtomicReferenceArray<String>(items.size());
+        final AtomicInteger remaining = new AtomicInteger(items.size());
+        final Runnable completed = new Runnable() {
+            @Override
+            public void run() {
+                result.setResult(batchReport(items, statuses));
+            }
+        };
+        result.onTimeout(completed);
+
+        // items of each device, in reverse order, so that each one can be
+        // linked to the next one
+        final Map<Long, BatchItem> first_items = new HashMap<Long, BatchItem>();
+        for (int i = items.size() - 1; i >= 0; i--) {
+            final String[] fields = items.get(i).split(",");
+            Long address = null;
+            byte[] value = null;
+            if (fields.length == 3 || fields.length == 4) {
+                address = parseDevice(fields[0].trim(), null);
+                value = parseValue(fields[2].trim());
+            }
+            if (address == null || value == null || fields[1].trim().length() != 2) {
+                log.warn("invalid batch item: " + items.get(i));
+                statuses.set(i, "error");
+                remaining.decrementAndGet();
+                continue;
+            }
+            final boolean verify = fields.length == 3 || !fields[3].trim().equals("0");
+            first_items.put(address, new BatchItem(i, address, fields[1].trim().toUpperCase(), value, verify,
+                    first_items.get(address), statuses, remaining, result, completed));
+        }
+
+        if (remaining.get() == 0)
+            completed.run();
+        else
+            for (final BatchItem item : first_items.values())
+                item.attempt();
+        return result;
+    }
+
+    // Prometheus text format
+    @RequestMapping("/metrics")
+    public void metrics(HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        Metrics.write(response.getWriter());
     }
 
     @RequestMapping("/checkAT")
@@ -105,73 +389,89 @@ public class WebController {
     }
 
     @RequestMapping("/setOnLED0")
-    public ModelAndView setOnLED0() throws IOException, InterruptedException {
+    public ModelAndView setOnLED0(@RequestParam(value = "device", required = false) final String device)
+            throws IOException, InterruptedException {
         ModelAndView mav = new ModelAndView();
-        serialPortHandler.state_led0 = true;
-        mav.addObject("statusString", "success");
+        final Long address = parseDevice(device, null);
+        mav.addObject("statusString",
+                address != null && serialPortHandler.setLED(address, 0, true) ? "success" : "error");
         mav.setViewName("display-status");
         return mav;
     }
 
     @RequestMapping("/setOnLED1")
-    public ModelAndView setOnLED1() throws IOException, InterruptedException {
+    public ModelAndView setOnLED1(@RequestParam(value = "device", required = false) final String device)
+            throws IOException, InterruptedException {
         ModelAndView mav = new ModelAndView();
-        serialPortHandler.state_led1 = true;
-        mav.addObject("statusString", "success");
+        final Long address = parseDevice(device, null);
+        mav.addObject("statusString",
+                address != null && serialPortHandler.setLED(address, 1, true) ? "success" : "error");
         mav.setViewName("display-status");
         return mav;
     }
 
     @RequestMapping("/setOnLED2")
-    public ModelAndView setOnLED2() throws IOException, InterruptedException {
+    public ModelAndView setOnLED2(@RequestParam(value = "device", required = false) final String device)
+            throws IOException, InterruptedException {
         ModelAndView mav = new ModelAndView();
-        serialPortHandler.state_led2 = true;
-        mav.addObject("statusString", "success");
+        final Long address = parseDevice(device, null);
+        mav.addObject("statusString",
+                address != null && serialPortHandler.setLED(address, 2, true) ? "success" : "error");
         mav.setViewName("display-status");
         return mav;
     }
 
     @RequestMapping("/setOnLED3")
-    public ModelAndView setOnLED3() throws IOException, InterruptedException {
+    public ModelAndView setOnLED3(@RequestParam(value = "device", required = false) final String device)
+            throws IOException, InterruptedException {
         ModelAndView mav = new ModelAndView();
-        serialPortHandler.state_led3 = true;
-        mav.addObject("statusString", "success");
+        final Long address = parseDevice(device, null);
+        mav.addObject("statusString",
+                address != null && serialPortHandler.setLED(address, 3, true) ? "success" : "error");
         mav.setViewName("display-status");
         return mav;
     }
 
     @RequestMapping("/setOffLED0")
-    public ModelAndView setOffLED0() throws IOException, InterruptedException {
+    public ModelAndView setOffLED0(@RequestParam(value = "device", required = false) final String device)
+            throws IOException, InterruptedException {
         ModelAndView mav = new ModelAndView();
-        serialPortHandler.state_led0 = false;
-        mav.addObject("statusString", "success");
+        final Long address = parseDevice(device, null);
+        mav.addObject("statusString",
+                address != null && serialPortHandler.setLED(address, 0, false) ? "success" : "error");
         mav.setViewName("display-status");
         return mav;
     }
 
     @RequestMapping("/setOffLED1")
-    public ModelAndView setOffLED1() throws IOException, InterruptedException {
+    public ModelAndView setOffLED1(@RequestParam(value = "device", required = false) final String device)
+            throws IOException, InterruptedException {
         ModelAndView mav = new ModelAndView();
-        serialPortHandler.state_led1 = false;
-        mav.addObject("statusString", "success");
+        final Long address = parseDevice(device, null);
+        mav.addObject("statusString",
+                address != null && serialPortHandler.setLED(address, 1, false) ? "success" : "error");
         mav.setViewName("display-status");
         return mav;
     }
 
     @RequestMapping("/setOffLED2")
-    public ModelAndView setOffLED2() throws IOException, InterruptedException {
+    public ModelAndView setOffLED2(@RequestParam(value = "device", required = false) final String device)
+            throws IOException, InterruptedException {
         ModelAndView mav = new ModelAndView();
-        serialPortHandler.state_led2 = false;
-        mav.addObject("statusString", "success");
+        final Long address = parseDevice(device, null);
+        mav.addObject("statusString",
+                address != null && serialPortHandler.setLED(address, 2, false) ? "success" : "error");
         mav.setViewName("display-status");
         return mav;
     }
 
     @RequestMapping("/setOffLED3")
-    public ModelAndView setOffLED3() throws IOException, InterruptedException {
+    public ModelAndView setOffLED3(@RequestParam(value = "device", required = false) final String device)
+            throws IOException, InterruptedException {
         ModelAndView mav = new ModelAndView();
-        serialPortHandler.state_led3 = false;
-        mav.addObject("statusString", "success");
+        final Long address = parseDevice(device, null);
+        mav.addObject("statusString",
+                address != null && serialPortHandler.setLED(address, 3, false) ? "success" : "error");
         mav.setViewName("display-status");
         return mav;
     }
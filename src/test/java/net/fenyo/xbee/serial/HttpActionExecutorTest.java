@@ -0,0 +1,146 @@
+package net.fenyo.xbee.serial;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+
+// against a local stub HTTP server: each request is answered once release is
+// counted down
+public class HttpActionExecutorTest {
+    private HttpServer server;
+    private HttpActionExecutor executor;
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                received.add(exchange.getRequestURI().getPath());
+                try {
+                    release.await();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (executor != null)
+            executor.shutdown();
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    private String url(final String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private List<String> receive(final int count) throws InterruptedException {
+        final List<String> retval = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            final String path = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull("request " + i + " not received", path);
+            retval.add(path);
+        }
+        return retval;
+    }
+
+    private void awaitIdle(final long timeout) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout;
+        while (!executor.isIdle()) {
+            assertTrue("requests still in flight", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void perHostLimit() throws Exception {
+        executor = new HttpActionExecutor(8, 2, 8, 5000, 10000);
+        for (int i = 0; i < 5; i++)
+            executor.submit(url("/" + i));
+
+        assertEquals(new HashSet<String>(Arrays.asList("/0", "/1")), new HashSet<String>(receive(2)));
+        // the other ones wait for a slot, although threads are available
+        assertNull(received.poll(300, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertEquals(new HashSet<String>(Arrays.asList("/2", "/3", "/4")), new HashSet<String>(receive(3)));
+        awaitIdle(5000);
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        executor = new HttpActionExecutor(4, 1, 2, 5000, 10000);
+        executor.submit(url("/0"));
+        assertEquals(Arrays.asList("/0"), receive(1));
+        for (int i = 1; i < 5; i++)
+            executor.submit(url("/" + i));
+
+        release.countDown();
+        // /1 and /2 have been dropped: the latest requests win
+        assertEquals(Arrays.asList("/3", "/4"), receive(2));
+        awaitIdle(5000);
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        executor = new HttpActionExecutor(4, 1, 8, 5000, 200);
+        final long start = System.currentTimeMillis();
+        executor.submit(url("/0"));
+        executor.submit(url("/1"));
+
+        // the server never answers: each request gives its slot back after the
+        // read timeout
+        assertEquals(Arrays.asList("/0", "/1"), receive(2));
+        awaitIdle(5000);
+        assertTrue(System.currentTimeMillis() - start < 3000);
+    }
+
+    @Test
+    public void connectTimeout() throws Exception {
+        // a listening socket that never accepts: once its backlog is full,
+        // further connections are not answered
+        final ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final List<Socket> fillers = new ArrayList<Socket>();
+        try {
+            boolean full = false;
+            for (int i = 0; i < 16 && !full; i++) {
+                final Socket filler = new Socket();
+                fillers.add(filler);
+                try {
+                    filler.connect(socket.getLocalSocketAddress(), 200);
+                } catch (final SocketTimeoutException ex) {
+                    full = true;
+                }
+            }
+            Assume.assumeTrue("the backlog of the socket can not be filled", full);
+
+            executor = new HttpActionExecutor(4, 1, 8, 200, 10000);
+            final long start = System.currentTimeMillis();
+            executor.submit("http://127.0.0.1:" + socket.getLocalPort() + "/0");
+            executor.submit("http://127.0.0.1:" + socket.getLocalPort() + "/1");
+            awaitIdle(5000);
+            assertTrue(System.currentTimeMillis() - start < 3000);
+        } finally {
+            for (final Socket filler : fillers)
+                filler.close();
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.fenyo.xbee.serial;
+
+import static org.junit.Assert.*;
+
+import java.nio.*;
+import java.util.*;
+import org.apache.commons.lang3.*;
+import org.junit.*;
+
+// encode(ByteBuffer) must produce the same bytes as the encoder it replaced
+public class XBeeFrameTest {
+    // the previous XBeeFrame.getRawContent(), kept as a reference
+    private static byte[] legacyRawContent(final int api_id, final int frame_id, final byte[] content) {
+        final List<Byte> raw_content = new ArrayList<Byte>();
+
+        final int len = 1
+                /* api id */ + ((frame_id == -1) ? 0 : 1) /* frame id */ + content.length;
+        raw_content.add((byte) (len >> 8)); // msb
+        raw_content.add((byte) (len & 0xff)); // lsb
+        raw_content.add((byte) api_id);
+        if (frame_id != -1)
+            raw_content.add((byte) frame_id);
+        raw_content.addAll(Arrays.asList(ArrayUtils.toObject(content)));
+
+        // compute checksum
+        int cksum = api_id + frame_id;
+        for (final byte b : content)
+            cksum += b;
+        cksum = 0xff - (cksum & 0xff);
+        raw_content.add((byte) cksum);
+
+        final List<Byte> escaped_raw_content = new ArrayList<Byte>();
+        for (final byte b : raw_content)
+            // initialized array must be sorted to make a binarySearch
+            if (Arrays.binarySearch(new byte[] { 0x11, 0x13, 0x7d, 0x7e }, b) < 0)
+                escaped_raw_content.add(b);
+            else {
+                escaped_raw_content.add((byte) 0x7d);
+                escaped_raw_content.add((byte) (b ^ 0x20));
+            }
+        escaped_raw_content.add(0, (byte) 0x7e); // add start delimiter
+
+        return ArrayUtils.toPrimitive(escaped_raw_content.toArray(new Byte[] {}));
+    }
+
+    private static byte[] encode(final XBeeData data, final int capacity) {
+        final ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        assertTrue(data.encode(buffer));
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] encode(final XBeeFrame frame) {
+        return encode(frame, frame.getMaxEncodedLength());
+    }
+
+    // frame without its start delimiter and its escape sequences
+    private static byte[] unescape(final byte[] raw) {
+        assertEquals(0x7e, raw[0]);
+        final ByteBuffer buffer = ByteBuffer.allocate(raw.length);
+        for (int i = 1; i < raw.length; i++)
+            buffer.put(raw[i] == 0x7d ? (byte) (raw[++i] ^ 0x20) : raw[i]);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void assertSameAsLegacy(final int api_id, final int frame_id, final byte[] content)
+            throws Exception {
+        final XBeeFrame frame = new XBeeFrame(api_id, frame_id, content);
+        final byte[] expected = legacyRawContent(api_id, frame_id, content);
+        assertArrayEquals(expected, encode(frame));
+        assertArrayEquals(expected, frame.getRawContent());
+    }
+
+    @Test
+    public void escapedContent() throws Exception {
+        assertSameAsLegacy(0x17, 1, new byte[] { 0x7e, 0x7d, 0x11, 0x13, 0x00, (byte) 0xff, 0x7e });
+        // every byte escaped: length, api id, frame id, content and checksum
+        assertSameAsLegacy(0x7e, 0x7d, new byte[] { 0x13, 0x11, 0x7d, 0x7e, 0x11, 0x11, 0x11, 0x11, 0x11, 0x11,
+                0x11, 0x11, 0x11, 0x11, 0x11 });
+    }
+
+    @Test
+    public void escapedChecksum() throws Exception {
+        // 0xff - (0x08 + 0x01 + 'N' + 0x97) == 0x11
+        final XBeeFrame frame = new XBeeFrame(0x08, 1, new byte[] { 'N', (byte) 0x97 });
+        final byte[] raw = encode(frame);
+        assertEquals(0x7d, raw[raw.length - 2]);
+        assertEquals(0x11 ^ 0x20, raw[raw.length - 1]);
+        assertSameAsLegacy(0x08, 1, new byte[] { 'N', (byte) 0x97 });
+    }
+
+    @Test
+    public void frameIdZero() throws Exception {
+        assertSameAsLegacy(0x17, 0, new byte[] { 0x00, 0x13, (byte) 0xa2, 0x00, 0x40, 0x3e, 0x7d, 0x11,
+                (byte) 0xff, (byte) 0xfe, 0x02, 'D', '0', 0x05 });
+        assertSameAsLegacy(0x00, 0, new byte[] { 'h', 'i' });
+    }
+
+    @Test
+    public void noFrameId() throws Exception {
+        final byte[] content = new byte[] { 0x00, 0x13, (byte) 0xa2, 0x00, 0x7e, 'h', 'i' };
+        final byte[] encoded = unescape(encode(new XBeeFrame(0x80, content)));
+        final byte[] legacy = unescape(legacyRawContent(0x80, -1, content));
+
+        // same frame, no frame id byte
+        assertEquals(2 + 1 + content.length + 1, encoded.length);
+        assertArrayEquals(Arrays.copyOf(legacy, legacy.length - 1), Arrays.copyOf(encoded, encoded.length - 1));
+
+        // the previous encoder added frame_id == -1 to the checksum
+        assertEquals((encoded[encoded.length - 1] + 1) & 0xff, legacy[legacy.length - 1] & 0xff);
+        int sum = 0;
+        for (int i = 2; i < encoded.length; i++)
+            sum += encoded[i] & 0xff;
+        assertEquals(0xff, sum & 0xff);
+    }
+
+    @Test
+    public void randomFrames() throws Exception {
+        final Random random = new Random(1);
+        final byte[] escaped = new byte[] { 0x7e, 0x7d, 0x11, 0x13 };
+        for (int i = 0; i < 20000; i++) {
+            final byte[] content = new byte[random.nextInt(300)];
+            for (int j = 0; j < content.length; j++)
+                content[j] = random.nextInt(4) == 0 ? escaped[random.nextInt(4)] : (byte) random.nextInt(256);
+            assertSameAsLegacy(random.nextInt(256), random.nextInt(256), content);
+        }
+    }
+
+    @Test
+    public void bufferTooSmall() {
+        final XBeeFrame frame = new XBeeFrame(0x08, 1, new byte[] { 'N', 'D' });
+        final ByteBuffer buffer = ByteBuffer.allocate(frame.getMaxEncodedLength() - 1);
+        assertFalse(frame.encode(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void atCommand() throws Exception {
+        for (final String command : new String[] { "+++", "ATAP2\r", "ATND\r", "ATID\u00e9\r" }) {
+            final XBeeATCommand at_command = new XBeeATCommand(command, "\r");
+            assertArrayEquals(command.getBytes("ISO8859-1"), encode(at_command, command.length()));
+            assertArrayEquals(command.getBytes("ISO8859-1"), at_command.getRawContent());
+        }
+        assertFalse(new XBeeATCommand("ATND\r", "\r").encode(ByteBuffer.allocate(4)));
+    }
+}